@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.MapMessage;
+
+/**
+ * The events and fields shared by the benchmarks. The fields follow the sample configuration of the appender, with a
+ * few more to cover every kind of {@link FieldConfig}.
+ *
+ * @author nthstage
+ *
+ */
+final class BenchmarkFixtures {
+
+    static final Configuration CONFIGURATION = new DefaultConfiguration();
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * @return an event with a {@link MapMessage} and a context map, as the sample application logs them.
+     */
+    static LogEvent newEvent() {
+        final Map<String, String> map = new HashMap<>();
+        map.put("host", "app-server-07.example.com");
+        map.put("service", "OrderService");
+        map.put("message", "Order 4711 accepted for customer <ACME & Co> after 3 attempts");
+        map.put("errorCode", "E-2041");
+        map.put("duration", "127");
+        map.put("tags", "orders,payments,eu-west");
+        final Map<String, String> context = new HashMap<>();
+        context.put("requestId", "0f8c2a6e-5c1b-4f7a-9d3e-2b8e4c1a7f60");
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("com.example.orders.OrderService")
+                .setLoggerFqcn(BenchmarkFixtures.class.getName())
+                .setLevel(Level.INFO)
+                .setMessage(new MapMessage(map))
+                .setContextMap(context)
+                .setThreadName("http-nio-8080-exec-3")
+                .setTimeMillis(System.currentTimeMillis())
+                .build();
+    }
+
+    /**
+     * @return the fields of a typical log document.
+     */
+    static FieldConfig[] newFieldConfigs() {
+        return new FieldConfig[] {
+            newFieldConfig("APP_NAME", "literal", "myTestingApplication"),
+            newFieldConfig("TIMESTAMP", "timestamp", "date"),
+            newFieldConfig("LEVEL", "pattern", "%level"),
+            newFieldConfig("LOGGER", "pattern", "%logger"),
+            newFieldConfig("HOST", "pattern", "%map{host}"),
+            newFieldConfig("SERVICE_NAME", "pattern", "%map{service}"),
+            newFieldConfig("MESSAGE", "pattern", "%map{message}"),
+            newFieldConfig("ERROR_CODE", "mapKey", "errorCode"),
+            newFieldConfig("DURATION", "mapKey", "duration", "int"),
+            newFieldConfig("REQUEST_ID", "contextKey", "requestId"),
+            newFieldConfig("TAGS", "mapKey", "tags", "string", "true"),
+        };
+    }
+
+    /**
+     * Creates a field through the plugin factory, as a configuration file would.
+     *
+     * @param name The field name.
+     * @param source One of {@code pattern}, {@code literal}, {@code timestamp}, {@code mapKey} or {@code contextKey}.
+     * @param value The pattern, literal or key; for {@code timestamp} the type.
+     * @param typeAndMultiValued The type and the {@code multiValued} attribute, both optional.
+     * @return the field.
+     */
+    static FieldConfig newFieldConfig(final String name, final String source, final String value,
+            final String... typeAndMultiValued) {
+        final boolean timestamp = "timestamp".equals(source);
+        final String type = timestamp ? value : typeAndMultiValued.length > 0 ? typeAndMultiValued[0] : null;
+        final String multiValued = typeAndMultiValued.length > 1 ? typeAndMultiValued[1] : null;
+        final FieldConfig config = FieldConfig.createColumnConfig(CONFIGURATION, name,
+                "pattern".equals(source) ? value : null,
+                "literal".equals(source) ? value : null,
+                timestamp ? "true" : null,
+                "mapKey".equals(source) ? value : null,
+                "contextKey".equals(source) ? value : null,
+                type, multiValued, null);
+        if (config == null) {
+            throw new IllegalArgumentException("Invalid field " + name);
+        }
+        return config;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Renders one field of an event, for every way a {@link FieldConfig} can read its value.
+ *
+ * @author nthstage
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldConfigBenchmark {
+
+    @Param({ "pattern", "mapKey", "contextKey", "literal", "timestamp", "int", "date", "multiValued" })
+    public String kind;
+
+    private FieldConfig field;
+    private LogEvent event;
+    private final StringBuilder buffer = new StringBuilder(256);
+
+    @Setup
+    public void setUp() {
+        switch (this.kind) {
+        case "int":
+            this.field = BenchmarkFixtures.newFieldConfig("DURATION", "mapKey", "duration", "int");
+            break;
+        case "date":
+            this.field = BenchmarkFixtures.newFieldConfig("TIMESTAMP", "timestamp", "date");
+            break;
+        case "timestamp":
+            this.field = BenchmarkFixtures.newFieldConfig("TIMESTAMP", "timestamp", "long");
+            break;
+        case "multiValued":
+            this.field = BenchmarkFixtures.newFieldConfig("TAGS", "mapKey", "tags", "string", "true");
+            break;
+        case "literal":
+            this.field = BenchmarkFixtures.newFieldConfig("APP_NAME", "literal", "myTestingApplication");
+            break;
+        case "contextKey":
+            this.field = BenchmarkFixtures.newFieldConfig("REQUEST_ID", "contextKey", "requestId");
+            break;
+        case "mapKey":
+            this.field = BenchmarkFixtures.newFieldConfig("MESSAGE", "mapKey", "message");
+            break;
+        default:
+            this.field = BenchmarkFixtures.newFieldConfig("MESSAGE", "pattern", "%map{message}");
+            break;
+        }
+        this.event = BenchmarkFixtures.newEvent();
+    }
+
+    @Benchmark
+    public int format() {
+        final StringBuilder text = this.buffer;
+        text.setLength(0);
+        if (!this.field.format(this.event, text)) {
+            return -1;
+        }
+        // the manager checks every value against the field type before it is encoded
+        return this.field.getType().normalize(text) ? text.length() : -1;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Appends events to a started {@link SolrAppender} sending to a {@link StubSolrClient}, the way a logger calls it.
+ * <ul>
+ * <li>{@code sync}: every event is sent on the logging thread.</li>
+ * <li>{@code buffered}: events are sent on the logging thread in batches of 100.</li>
+ * <li>{@code async}: events are handed to a worker thread, blocking while its queue is full, so the result is the
+ * rate the worker sustains.</li>
+ * </ul>
+ *
+ * @author nthstage
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SolrAppenderBenchmark {
+
+    @Param({ "sync", "buffered", "async" })
+    public String mode;
+
+    private SolrAppender appender;
+    private LogEvent event;
+
+    @Setup
+    public void setUp() {
+        final boolean async = "async".equals(this.mode);
+        this.appender = newAppender("SolrAppenderBenchmark", new StubSolrConnectionSource(false),
+                "sync".equals(this.mode) ? "0" : "100", Boolean.toString(async));
+        this.appender.start();
+        this.event = BenchmarkFixtures.newEvent();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.appender.stop();
+    }
+
+    @Benchmark
+    public void append() {
+        this.appender.append(this.event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void appendFourProducers() {
+        this.appender.append(this.event);
+    }
+
+    /**
+     * One producer per core; compared with {@link #append()}, shows how producer throughput scales with cores.
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void appendAllCores() {
+        this.appender.append(this.event);
+    }
+
+    /**
+     * Creates an appender through the plugin factory, leaving every attribute not given at its default.
+     */
+    static SolrAppender newAppender(final String name, final SolrConnectionSource source, final String bufferSize,
+            final String async) {
+        final SolrAppender appender = SolrAppender.createAppender(name, "true", null, source, bufferSize,
+                BenchmarkFixtures.newFieldConfigs(), async, null, null, null, null, null, null, null, null, null, null,
+                null, BenchmarkFixtures.CONFIGURATION, null, null, null, null, null, null, null, null);
+        if (appender == null) {
+            throw new IllegalStateException("Cannot create SOLR appender " + name);
+        }
+        return appender;
+    }
+}
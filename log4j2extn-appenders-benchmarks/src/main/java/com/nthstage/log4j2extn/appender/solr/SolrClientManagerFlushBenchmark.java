@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Buffers a batch of events in a {@link SolrClientManager} and flushes it to a {@link StubSolrClient}, including the
+ * commit the default commit policy sends after every flush. One operation is one whole batch.
+ *
+ * @author nthstage
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SolrClientManagerFlushBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int batchSize;
+
+    /** {@code xml} for pre-encoded XML bodies, {@code javabin} for documents encoded by the client. */
+    @Param({ "xml", "javabin" })
+    public String encoding;
+
+    private SolrClientManager manager;
+    private LogEvent event;
+
+    @Setup
+    public void setUp() {
+        this.manager = SolrClientManager.newBuilder()
+                .withName("SolrClientManagerFlushBenchmark")
+                // one more than the batch, so only the explicit flush sends
+                .withBufferSize(this.batchSize + 1)
+                .withConnectionSource(new StubSolrConnectionSource("javabin".equals(this.encoding)))
+                .withFieldConfigs(BenchmarkFixtures.newFieldConfigs())
+                .build();
+        this.manager.startup();
+        this.event = BenchmarkFixtures.newEvent();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.manager.release();
+    }
+
+    @Benchmark
+    public void writeAndFlush() {
+        for (int i = 0; i < this.batchSize; i++) {
+            this.manager.write(this.event);
+        }
+        this.manager.flush();
+    }
+}
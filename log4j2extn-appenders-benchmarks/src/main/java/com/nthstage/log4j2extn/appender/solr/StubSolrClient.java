@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * An in-process {@link SolrClient} that accepts every request. Request bodies are read to the end, and documents
+ * handed over as {@code SolrInputDocument}s are written as javabin, so the cost of encoding a request is measured the
+ * same way it is paid against a real server; only the network and the server are left out.
+ *
+ * @author nthstage
+ *
+ */
+final class StubSolrClient extends SolrClient {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient BinaryRequestWriter requestWriter = new BinaryRequestWriter();
+    private final transient CountingOutputStream sink = new CountingOutputStream();
+    private final byte[] readBuffer = new byte[8192];
+    private final NamedList<Object> response = new NamedList<>();
+    private long requests;
+
+    StubSolrClient() {
+        final NamedList<Object> header = new NamedList<>();
+        header.add("status", 0);
+        header.add("QTime", 0);
+        this.response.add("responseHeader", header);
+    }
+
+    @Override
+    public synchronized NamedList<Object> request(@SuppressWarnings("rawtypes") final SolrRequest request,
+            final String collection) throws IOException {
+        this.requests++;
+        if (request instanceof UpdateRequest && ((UpdateRequest) request).getDocuments() != null) {
+            this.requestWriter.write(request, this.sink);
+            return this.response;
+        }
+        // a raw request erases the element type of its streams
+        final SolrRequest<?> typedRequest = request;
+        final Collection<ContentStream> streams = typedRequest.getContentStreams();
+        if (streams != null) {
+            for (final ContentStream stream : streams) {
+                try (final InputStream in = stream.getStream()) {
+                    for (int read; (read = in.read(this.readBuffer)) >= 0;) {
+                        this.sink.count += read;
+                    }
+                }
+            }
+        }
+        return this.response;
+    }
+
+    /**
+     * @return the number of requests received.
+     */
+    synchronized long getRequestCount() {
+        return this.requests;
+    }
+
+    /**
+     * @return the number of request body bytes received.
+     */
+    synchronized long getByteCount() {
+        return this.sink.count;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(final int b) {
+            this.count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            this.count += len;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+
+/**
+ * Hands out one {@link StubSolrClient}, so a manager or appender can be benchmarked without a Solr server.
+ *
+ * @author nthstage
+ *
+ */
+final class StubSolrConnectionSource extends AbstractSolrConnectionSource {
+
+    private final boolean clientEncoding;
+
+    /**
+     * @param clientEncoding If {@code true}, documents are handed to the client as {@code SolrInputDocument}s and
+     *                       encoded as javabin, like {@link CloudSolrConnectionSource}; otherwise they are sent as
+     *                       pre-encoded XML, like {@link HttpSolrConnectionSource}.
+     */
+    StubSolrConnectionSource(final boolean clientEncoding) {
+        this.clientEncoding = clientEncoding;
+    }
+
+    @Override
+    protected SolrClient createSolrClient() {
+        return new StubSolrClient();
+    }
+
+    @Override
+    public boolean isClientEncoding() {
+        return this.clientEncoding;
+    }
+
+    @Override
+    public String toString() {
+        return "StubSolrConnectionSource[clientEncoding=" + this.clientEncoding + "]";
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.logging.log4j.core.async.DaemonThreadFactory;
+import org.apache.logging.log4j.core.util.Closer;
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for a Solr server that speaks enough of the {@code /update} protocol for the appender: XML and javabin
+ * update requests, commits and pings, answered in javabin or XML. Request bodies may be gzip-compressed. Documents are counted and thrown away. It listens on
+ * the loopback interface only and can add latency, fail a share of the requests and throttle requests beyond a rate,
+ * so the appender can be load tested end to end without a Solr installation.
+ *
+ * @author nthstage
+ *
+ */
+public final class FakeSolrServer {
+
+    private static final String JAVABIN_CONTENT_TYPE = "application/octet-stream";
+    private static final String XML_CONTENT_TYPE = "application/xml; charset=UTF-8";
+    private static final int SC_OK = 200;
+    private static final int SC_BAD_REQUEST = 400;
+    private static final int SC_NOT_FOUND = 404;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final int SC_SERVICE_UNAVAILABLE = 503;
+
+    static {
+        // the JDK server sends headers and body in separate packets; with Nagle's algorithm every response waits for
+        // the delayed acknowledgement of the headers, which would cap a connection at about 25 requests per second
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+    private final long latencyMillis;
+    private final long latencyJitterMillis;
+    private final double errorRate;
+    private final int maxRequestsPerSecond;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private final AtomicLong badRequests = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+
+    private long windowStartMillis;
+    private int windowRequests;
+
+    private FakeSolrServer(final Builder builder) throws IOException {
+        this.latencyMillis = builder.latencyMillis;
+        this.latencyJitterMillis = builder.latencyJitterMillis;
+        this.errorRate = builder.errorRate;
+        this.maxRequestsPerSecond = builder.maxRequestsPerSecond;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port), 1024);
+        this.server.createContext("/solr/", new SolrHandler());
+        this.executor = Executors.newFixedThreadPool(builder.handlerThreads, new DaemonThreadFactory("FakeSolrServer-"));
+        this.server.setExecutor(this.executor);
+        this.xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Starts accepting requests.
+     *
+     * @return this server.
+     */
+    public FakeSolrServer start() {
+        this.server.start();
+        return this;
+    }
+
+    /**
+     * Stops the server, dropping requests still in progress.
+     */
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * @return the URL of the server, such as {@code http://127.0.0.1:8983/solr/}; any core name is accepted.
+     */
+    public String getBaseUrl() {
+        final InetSocketAddress address = this.server.getAddress();
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + "/solr/";
+    }
+
+    /**
+     * Sets all counters back to zero, between the runs of a load test.
+     */
+    public void reset() {
+        this.requests.set(0);
+        this.documents.set(0);
+        this.commits.set(0);
+        this.failedRequests.set(0);
+        this.throttledRequests.set(0);
+        this.badRequests.set(0);
+        this.receivedBytes.set(0);
+    }
+
+    /**
+     * Waits until at least {@code expected} documents have been indexed, or until no document has arrived for
+     * {@code idleMillis}.
+     *
+     * @param expected The number of documents to wait for.
+     * @param idleMillis How long to wait for the next document before giving up.
+     * @return the number of documents indexed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public long awaitDocuments(final long expected, final long idleMillis) throws InterruptedException {
+        long seen = this.documents.get();
+        long lastProgress = System.nanoTime();
+        while (seen < expected && System.nanoTime() - lastProgress < TimeUnit.MILLISECONDS.toNanos(idleMillis)) {
+            Thread.sleep(10);
+            final long now = this.documents.get();
+            if (now != seen) {
+                seen = now;
+                lastProgress = System.nanoTime();
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * @return the number of requests received, including failed, throttled and bad ones.
+     */
+    public long getRequestCount() {
+        return this.requests.get();
+    }
+
+    /**
+     * @return the number of documents indexed.
+     */
+    public long getDocumentCount() {
+        return this.documents.get();
+    }
+
+    /**
+     * @return the number of commits received.
+     */
+    public long getCommitCount() {
+        return this.commits.get();
+    }
+
+    /**
+     * @return the number of requests failed on purpose with {@code 503 Service Unavailable}.
+     */
+    public long getFailedRequestCount() {
+        return this.failedRequests.get();
+    }
+
+    /**
+     * @return the number of requests refused with {@code 429 Too Many Requests}.
+     */
+    public long getThrottledRequestCount() {
+        return this.throttledRequests.get();
+    }
+
+    /**
+     * @return the number of requests that could not be parsed, answered with {@code 400 Bad Request}.
+     */
+    public long getBadRequestCount() {
+        return this.badRequests.get();
+    }
+
+    /**
+     * @return the number of request body bytes received, as sent over the wire before any gzip compression is undone.
+     */
+    public long getReceivedBytes() {
+        return this.receivedBytes.get();
+    }
+
+    /**
+     * @return {@code true} if the request exceeds {@code maxRequestsPerSecond} in the current one second window.
+     */
+    private synchronized boolean isThrottled() {
+        if (this.maxRequestsPerSecond <= 0) {
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - this.windowStartMillis >= 1000) {
+            this.windowStartMillis = now;
+            this.windowRequests = 0;
+        }
+        return ++this.windowRequests > this.maxRequestsPerSecond;
+    }
+
+    private void delay() {
+        long millis = this.latencyMillis;
+        if (this.latencyJitterMillis > 0) {
+            millis += ThreadLocalRandom.current().nextLong(this.latencyJitterMillis + 1);
+        }
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Counts the documents of an XML update message and whether it asks for a commit, checking it is well formed.
+     *
+     * @return the number of documents.
+     */
+    private long readXml(final InputStream body) throws XMLStreamException {
+        final XMLStreamReader reader = this.xmlInputFactory.createXMLStreamReader(body, "UTF-8");
+        try {
+            long count = 0;
+            int depth = 0;
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    final String name = reader.getLocalName();
+                    if (depth == 2 && "doc".equals(name)) {
+                        count++;
+                    } else if ("commit".equals(name)) {
+                        this.commits.incrementAndGet();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Counts the documents of a javabin update message. Streaming clients send several messages in one body.
+     *
+     * @return the number of documents.
+     */
+    private static long readJavabin(final InputStream body) throws IOException {
+        final long[] count = new long[1];
+        final JavaBinUpdateRequestCodec.StreamingUpdateHandler handler =
+                new JavaBinUpdateRequestCodec.StreamingUpdateHandler() {
+                    @Override
+                    public void update(final SolrInputDocument document, final UpdateRequest request,
+                            final Integer commitWithin, final Boolean overwrite) {
+                        if (document != null) {
+                            count[0]++;
+                        }
+                    }
+                };
+        final BufferedInputStream in = new BufferedInputStream(body);
+        while (true) {
+            in.mark(1);
+            if (in.read() < 0) {
+                return count[0];
+            }
+            in.reset();
+            new JavaBinUpdateRequestCodec().unmarshal(in, handler);
+        }
+    }
+
+    private static void drain(final InputStream body) throws IOException {
+        final byte[] buffer = new byte[8192];
+        while (body.read(buffer) >= 0) {
+            // discard
+        }
+    }
+
+    private static String readText(final InputStream body) throws IOException {
+        final ByteArrayOutputStream text = new ByteArrayOutputStream(256);
+        final byte[] buffer = new byte[8192];
+        for (int read; (read = body.read(buffer)) >= 0;) {
+            text.write(buffer, 0, read);
+        }
+        return text.toString("UTF-8");
+    }
+
+    private static boolean hasParam(final String query, final String param) {
+        if (query == null) {
+            return false;
+        }
+        for (final String pair : query.split("&")) {
+            if (pair.equals(param)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class SolrHandler implements HttpHandler {
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                requests.incrementAndGet();
+                final String path = exchange.getRequestURI().getPath();
+                final String query = exchange.getRequestURI().getRawQuery();
+                final boolean xml = hasParam(query, "wt=xml");
+                final InputStream body;
+                try {
+                    body = openBody(exchange);
+                } catch (final IOException e) {
+                    badRequests.incrementAndGet();
+                    sendError(exchange, xml, SC_BAD_REQUEST, String.valueOf(e.getMessage()));
+                    return;
+                }
+                delay();
+                if (isThrottled()) {
+                    throttledRequests.incrementAndGet();
+                    drain(body);
+                    sendError(exchange, xml, SC_TOO_MANY_REQUESTS, "Too many requests");
+                    return;
+                }
+                if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    failedRequests.incrementAndGet();
+                    drain(body);
+                    sendError(exchange, xml, SC_SERVICE_UNAVAILABLE, "Injected failure");
+                    return;
+                }
+                if (path.endsWith("/admin/ping")) {
+                    drain(body);
+                    final NamedList<Object> response = newResponse(0);
+                    response.add("status", "OK");
+                    send(exchange, xml, SC_OK, response);
+                    return;
+                }
+                if (!path.endsWith("/update")) {
+                    drain(body);
+                    sendError(exchange, xml, SC_NOT_FOUND, "No handler for " + path);
+                    return;
+                }
+                final String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+                    // commits and other bodiless updates post their parameters as a form
+                    if (hasParam(readText(body), "commit=true")) {
+                        commits.incrementAndGet();
+                    }
+                    send(exchange, xml, SC_OK, newResponse(0));
+                    return;
+                }
+                final long count;
+                try {
+                    count = contentType != null && contentType.contains("javabin") ? readJavabin(body)
+                            : readXml(body);
+                } catch (final XMLStreamException | IOException | RuntimeException e) {
+                    badRequests.incrementAndGet();
+                    drain(body);
+                    sendError(exchange, xml, SC_BAD_REQUEST, String.valueOf(e.getMessage()));
+                    return;
+                }
+                documents.addAndGet(count);
+                if (hasParam(query, "commit=true")) {
+                    commits.incrementAndGet();
+                }
+                send(exchange, xml, SC_OK, newResponse(0));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private InputStream openBody(final HttpExchange exchange) throws IOException {
+            final InputStream body = new CountingInputStream(exchange.getRequestBody(), receivedBytes);
+            return "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+                    ? new GZIPInputStream(body) : body;
+        }
+
+        private NamedList<Object> newResponse(final int status) {
+            final NamedList<Object> header = new NamedList<>();
+            header.add("status", status);
+            header.add("QTime", 0);
+            final NamedList<Object> response = new NamedList<>();
+            response.add("responseHeader", header);
+            return response;
+        }
+
+        private void sendError(final HttpExchange exchange, final boolean xml, final int code, final String message)
+                throws IOException {
+            final NamedList<Object> error = new NamedList<>();
+            error.add("msg", message);
+            error.add("code", code);
+            final NamedList<Object> response = newResponse(code);
+            response.add("error", error);
+            send(exchange, xml, code, response);
+        }
+
+        private void send(final HttpExchange exchange, final boolean xml, final int code,
+                final NamedList<Object> response) throws IOException {
+            final byte[] bytes;
+            if (xml) {
+                bytes = toXml(response).getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", XML_CONTENT_TYPE);
+            } else {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+                new JavaBinCodec().marshal(response, out);
+                bytes = out.toByteArray();
+                exchange.getResponseHeaders().set("Content-Type", JAVABIN_CONTENT_TYPE);
+            }
+            exchange.sendResponseHeaders(code, bytes.length);
+            try {
+                exchange.getResponseBody().write(bytes);
+            } finally {
+                Closer.closeSilently(exchange.getResponseBody());
+            }
+        }
+
+        /**
+         * Writes the flat, two level responses of this server in Solr's XML response format.
+         */
+        private String toXml(final NamedList<Object> response) {
+            final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response>");
+            for (int i = 0; i < response.size(); i++) {
+                final Object value = response.getVal(i);
+                if (value instanceof NamedList) {
+                    final NamedList<?> list = (NamedList<?>) value;
+                    xml.append("<lst name=\"").append(response.getName(i)).append("\">");
+                    for (int j = 0; j < list.size(); j++) {
+                        appendValue(xml, list.getName(j), list.getVal(j));
+                    }
+                    xml.append("</lst>");
+                } else {
+                    appendValue(xml, response.getName(i), value);
+                }
+            }
+            return xml.append("</response>").toString();
+        }
+
+        private void appendValue(final StringBuilder xml, final String name, final Object value) {
+            final String element = value instanceof Integer ? "int" : "str";
+            final String text = String.valueOf(value).replace("&", "&amp;").replace("<", "&lt;");
+            xml.append('<').append(element).append(" name=\"").append(name).append("\">").append(text)
+                    .append("</").append(element).append('>');
+        }
+    }
+
+    public static class Builder {
+        private int port;
+        private int handlerThreads = 16;
+        private long latencyMillis;
+        private long latencyJitterMillis;
+        private double errorRate;
+        private int maxRequestsPerSecond;
+
+        private Builder() {
+        }
+
+        /**
+         * @param port The port to listen on, {@code 0} (the default) for any free port.
+         */
+        public Builder withPort(final int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param handlerThreads The number of requests handled at the same time, like the Jetty thread pool of Solr.
+         */
+        public Builder withHandlerThreads(final int handlerThreads) {
+            this.handlerThreads = Math.max(1, handlerThreads);
+            return this;
+        }
+
+        /**
+         * @param latencyMillis The time every request takes.
+         * @param latencyJitterMillis The most time a request takes on top of {@code latencyMillis}, picked at random.
+         */
+        public Builder withLatency(final long latencyMillis, final long latencyJitterMillis) {
+            this.latencyMillis = Math.max(0, latencyMillis);
+            this.latencyJitterMillis = Math.max(0, latencyJitterMillis);
+            return this;
+        }
+
+        /**
+         * @param errorRate The share of requests, between {@code 0} and {@code 1}, answered with
+         *                  {@code 503 Service Unavailable} instead of being indexed.
+         */
+        public Builder withErrorRate(final double errorRate) {
+            this.errorRate = Math.max(0, Math.min(1, errorRate));
+            return this;
+        }
+
+        /**
+         * @param maxRequestsPerSecond The number of requests accepted per second; the rest are answered with
+         *                             {@code 429 Too Many Requests}. {@code 0}, the default, accepts all.
+         */
+        public Builder withMaxRequestsPerSecond(final int maxRequestsPerSecond) {
+            this.maxRequestsPerSecond = Math.max(0, maxRequestsPerSecond);
+            return this;
+        }
+
+        /**
+         * @return the server, not started yet.
+         * @throws IOException if the port cannot be bound.
+         */
+        public FakeSolrServer build() throws IOException {
+            return new FakeSolrServer(this);
+        }
+    }
+
+    /**
+     * Adds the number of bytes read through it to a counter.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final AtomicLong counter;
+
+        CountingInputStream(final InputStream in, final AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                this.counter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                this.counter.addAndGet(read);
+            }
+            return read;
+        }
+    }
+}
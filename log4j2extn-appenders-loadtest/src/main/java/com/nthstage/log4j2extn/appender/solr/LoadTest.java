@@ -0,0 +1,331 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AsyncAppender;
+import org.apache.logging.log4j.core.config.AppenderRef;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+
+/**
+ * Drives the SOLR appender against a {@link FakeSolrServer} and reports, for every connection source and buffering
+ * mode, how fast events are appended and indexed and how long the logging threads wait in {@code append}.
+ * <p>
+ * Options are given as {@code name=value} arguments; run with {@code help} to list them. For example
+ * {@code threads=8 events=200000 shape=large latencyMillis=5 sources=pooling modes=buffered,async} measures how the
+ * pooling source copes with a slow server.
+ * </p>
+ *
+ * @author nthstage
+ *
+ */
+public final class LoadTest {
+
+    private static final String CORE = "loadtest";
+    private static final String[][] OPTIONS = {
+        { "threads", "4", "producer threads" },
+        { "events", "100000", "events per scenario, shared by the producers" },
+        { "warmupEvents", "20000", "events sent before each scenario and not reported" },
+        { "shape", "typical", "message shape: small, typical or large" },
+        { "sources", "http,pooling", "connection sources to test: http, pooling or concurrent" },
+        { "modes", "sync,buffered,async,adaptive", "buffering modes to test; adaptive is behind an Async appender" },
+        { "bufferSize", "100", "buffer size of the buffered and async modes" },
+        { "queueCapacity", null, "queue capacity of the async mode and of the Async appender (1024)" },
+        { "queueFullPolicy", null, "queue full policy of the async mode" },
+        { "workerThreads", null, "worker threads of the async mode" },
+        { "flushIntervalMillis", null, "flush interval of the appender" },
+        { "commitPolicy", null, "commit policy of the appender" },
+        { "retryPolicy", null, "retry policy of the appender" },
+        { "adaptiveLimits", null, "adaptive batch size and in-flight request limits of the appender" },
+        { "latencyMillis", "0", "time the server takes for every request" },
+        { "jitterMillis", "0", "most extra time the server takes, at random" },
+        { "errorRate", "0", "share of requests the server fails with 503" },
+        { "maxRequestsPerSecond", "0", "requests per second the server accepts before answering 429" },
+        { "handlerThreads", "16", "requests the server handles at the same time" },
+        { "compressRequests", "false", "gzip request bodies of the pooling source" },
+        { "collection", null, "pattern routing each event to a collection, such as logs_%K{service}" },
+        { "parallelism", null, "batches the appender sends at the same time" },
+        { "orderingKey", null, "pattern whose events keep their order, such as %map{host}" },
+    };
+
+    private final Map<String, String> options;
+    private final Configuration configuration = new DefaultConfiguration();
+    private final PrintStream out;
+
+    private LoadTest(final Map<String, String> options, final PrintStream out) {
+        this.options = options;
+        this.out = out;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new LinkedHashMap<>();
+        for (final String[] option : OPTIONS) {
+            options.put(option[0], option[1]);
+        }
+        for (final String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (eq <= 0 || !options.containsKey(arg.substring(0, eq))) {
+                usage(System.err);
+                System.exit(1);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoadTest(options, System.out).run();
+        System.exit(0);
+    }
+
+    private static void usage(final PrintStream out) {
+        out.println("Usage: LoadTest [name=value]...");
+        for (final String[] option : OPTIONS) {
+            out.printf("  %-22s %s%s%n", option[0], option[2], option[1] == null ? "" : " (" + option[1] + ")");
+        }
+    }
+
+    private String option(final String name) {
+        return this.options.get(name);
+    }
+
+    private int intOption(final String name) {
+        return Integer.parseInt(this.option(name).trim());
+    }
+
+    private void run() throws Exception {
+        final MessageShape shape = MessageShape.toMessageShape(this.option("shape"));
+        if (shape == null) {
+            throw new IllegalArgumentException("Unknown message shape " + this.option("shape"));
+        }
+        final FakeSolrServer server = FakeSolrServer.newBuilder()
+                .withHandlerThreads(this.intOption("handlerThreads"))
+                .withLatency(Long.parseLong(this.option("latencyMillis")), Long.parseLong(this.option("jitterMillis")))
+                .withErrorRate(Double.parseDouble(this.option("errorRate")))
+                .withMaxRequestsPerSecond(this.intOption("maxRequestsPerSecond"))
+                .build()
+                .start();
+        try {
+            this.out.printf("Fake Solr at %s, %s messages, %s threads, %s events per scenario%n%n", server.getBaseUrl(),
+                    shape.name().toLowerCase(), this.option("threads"), this.option("events"));
+            this.out.printf("%-11s %-9s %10s %10s %8s %8s %8s %8s %8s %8s %8s %8s %8s%n", "source", "mode",
+                    "append/s", "indexed/s", "p50 us", "p99 us", "p99.9 us", "max us", "requests", "KB sent", "errors",
+                    "failed", "lost");
+            for (final String source : this.option("sources").split(",")) {
+                for (final String mode : this.option("modes").split(",")) {
+                    final int warmup = this.intOption("warmupEvents");
+                    if (warmup > 0) {
+                        this.runScenario(server, source.trim(), mode.trim(), shape, warmup);
+                    }
+                    final Result result = this.runScenario(server, source.trim(), mode.trim(), shape,
+                            this.intOption("events"));
+                    this.out.printf("%-11s %-9s %10.0f %10.0f %8d %8d %8d %8d %8d %8d %8d %8d %8d%n", source.trim(),
+                            mode.trim(), result.getAppendRate(), result.getIndexRate(),
+                            result.latency.getPercentile(50), result.latency.getPercentile(99),
+                            result.latency.getPercentile(99.9), result.latency.getMax(), result.requests,
+                            result.receivedBytes / 1024, result.serverErrors, result.failedAppends.get(),
+                            result.events - result.indexed);
+                }
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private SolrConnectionSource newConnectionSource(final String source, final String url) {
+        // routed appenders pick the core themselves
+        final String core = this.option("collection") == null ? CORE : null;
+        switch (source) {
+        case "http":
+            return HttpSolrConnectionSource.createConnectionSource(url, core, null);
+        case "pooling":
+            return PoolingHttpSolrConnectionSource.createConnectionSource(url, core, null, null, null, null, null, null,
+                    null, null, null, this.option("compressRequests"), null, null);
+        case "concurrent":
+            return ConcurrentUpdateSolrConnectionSource.createConnectionSource(url, core, null, null, null);
+        default:
+            throw new IllegalArgumentException("Unknown source " + source + "; use http, pooling or concurrent");
+        }
+    }
+
+    private SolrAppender newAppender(final String name, final SolrConnectionSource source, final String mode) {
+        final boolean async;
+        final String bufferSize;
+        final boolean adaptive = "adaptive".equals(mode);
+        switch (mode) {
+        case "sync":
+            async = false;
+            bufferSize = "0";
+            break;
+        case "buffered":
+            async = false;
+            bufferSize = this.option("bufferSize");
+            break;
+        case "async":
+            async = true;
+            bufferSize = this.option("bufferSize");
+            break;
+        case "adaptive":
+            async = false;
+            bufferSize = null;
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown mode " + mode + "; use sync, buffered, async or adaptive");
+        }
+        final SolrAppender appender = SolrAppender.createAppender(name, "true", null, source, bufferSize,
+                this.newFieldConfigs(), Boolean.toString(async), this.option("queueCapacity"),
+                this.option("queueFullPolicy"), this.option("workerThreads"), null, null, this.option("commitPolicy"),
+                null, this.option("flushIntervalMillis"), Boolean.toString(adaptive), this.option("retryPolicy"), null,
+                this.configuration, null, null, null, this.option("collection"), null,
+                this.option("adaptiveLimits"), this.option("parallelism"), this.option("orderingKey"));
+        if (appender == null) {
+            throw new IllegalArgumentException("Invalid appender options " + this.options);
+        }
+        return appender;
+    }
+
+    /**
+     * @return the fields of the sample configuration, plus the user of the typical message.
+     */
+    private FieldConfig[] newFieldConfigs() {
+        return new FieldConfig[] {
+            this.newFieldConfig("APP_NAME", "myTestingApplication", null, null),
+            this.newFieldConfig("TIMESTAMP", null, null, "date"),
+            this.newFieldConfig("HOST", null, "%map{host}", null),
+            this.newFieldConfig("USER_ID", null, "%map{userId}", null),
+            this.newFieldConfig("SERVICE_NAME", null, "%map{service}", null),
+            this.newFieldConfig("DURATION", null, "%map{duration}", "int"),
+            this.newFieldConfig("MESSAGE", null, "%map{message}", null),
+            this.newFieldConfig("ERROR_CODE", null, "%map{errorCode}", null),
+        };
+    }
+
+    private FieldConfig newFieldConfig(final String name, final String literal, final String pattern,
+            final String type) {
+        final boolean timestamp = literal == null && pattern == null;
+        return FieldConfig.createColumnConfig(this.configuration, name, pattern, literal,
+                timestamp ? "true" : null, null, null, type, null, null);
+    }
+
+    /**
+     * Puts an {@code Async} appender in front of the SOLR appender, as a configuration for adaptive batching would.
+     */
+    private Appender newAsyncAppender(final SolrAppender appender) {
+        this.configuration.addAppender(appender);
+        final String queueCapacity = this.option("queueCapacity");
+        return AsyncAppender.createAppender(
+                new AppenderRef[] { AppenderRef.createAppenderRef(appender.getName(), null, null) }, null, true, 0,
+                queueCapacity == null ? 1024 : Integer.parseInt(queueCapacity), appender.getName() + "-async", false,
+                null, this.configuration, true);
+    }
+
+    private Result runScenario(final FakeSolrServer server, final String sourceName, final String mode,
+            final MessageShape shape, final int events) throws InterruptedException {
+        server.reset();
+        final SolrAppender solrAppender = this.newAppender("loadtest-" + sourceName + "-" + mode,
+                this.newConnectionSource(sourceName, server.getBaseUrl()), mode);
+        solrAppender.start();
+        final Appender appender = "adaptive".equals(mode) ? this.newAsyncAppender(solrAppender) : solrAppender;
+        appender.start();
+        final int threads = Math.max(1, this.intOption("threads"));
+        final Result result = new Result(events);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> producers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            final int share = events / threads + (t < events % threads ? 1 : 0);
+            final Random random = new Random(t);
+            final Thread producer = new Thread("LoadTest-producer-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < share; i++) {
+                        final LogEvent event = Log4jLogEvent.newBuilder()
+                                .setLoggerName(LoadTest.class.getName())
+                                .setLevel(Level.INFO)
+                                .setMessage(shape.newMessage(random))
+                                .setThreadName(this.getName())
+                                .setTimeMillis(System.currentTimeMillis())
+                                .build();
+                        final long startNanos = System.nanoTime();
+                        try {
+                            appender.append(event);
+                        } catch (final RuntimeException e) {
+                            result.failedAppends.incrementAndGet();
+                        }
+                        result.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+                    }
+                }
+            };
+            producers.add(producer);
+            producer.start();
+        }
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+        result.appendNanos = System.nanoTime() - startNanos;
+        appender.stop();
+        solrAppender.stop();
+        this.configuration.getAppenders().remove(solrAppender.getName());
+        result.indexed = server.awaitDocuments(events, 2000);
+        // the wait ends 2 s after the last document when some are lost; that time is not part of the run
+        result.indexNanos = result.indexed < events ? result.appendNanos : System.nanoTime() - startNanos;
+        result.requests = server.getRequestCount();
+        result.receivedBytes = server.getReceivedBytes();
+        result.serverErrors = server.getFailedRequestCount() + server.getThrottledRequestCount()
+                + server.getBadRequestCount();
+        return result;
+    }
+
+    private static final class Result {
+        final int events;
+        final Histogram latency = new Histogram();
+        final AtomicLong failedAppends = new AtomicLong();
+        long appendNanos;
+        long indexNanos;
+        long indexed;
+        long requests;
+        long receivedBytes;
+        long serverErrors;
+
+        Result(final int events) {
+            this.events = events;
+        }
+
+        double getAppendRate() {
+            return this.events * 1e9 / Math.max(1, this.appendNanos);
+        }
+
+        double getIndexRate() {
+            return this.indexed * 1e9 / Math.max(1, this.indexNanos);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.logging.log4j.message.MapMessage;
+
+/**
+ * The kinds of {@link MapMessage} the load test logs, modelled on the messages of the sample application.
+ *
+ * @author nthstage
+ *
+ */
+public enum MessageShape {
+    /** Host, service and a one word message. */
+    SMALL,
+    /** The message of the sample application: host, user, service, duration and a short message. */
+    TYPICAL,
+    /** A failed call: the typical message plus an error code and a stack trace of about 2 KB. */
+    LARGE;
+
+    private static final String STACK_TRACE;
+
+    static {
+        final StringBuilder trace = new StringBuilder("java.net.SocketTimeoutException: Read timed out");
+        for (int i = 0; trace.length() < 2048; i++) {
+            trace.append("\n\tat com.example.service.Service").append(i % 5).append(".call").append(i)
+                    .append("(Service").append(i % 5).append(".java:").append(100 + i * 7).append(')');
+        }
+        STACK_TRACE = trace.toString();
+    }
+
+    /**
+     * Parses a shape name, case-insensitively.
+     *
+     * @return the shape, or {@code null} if the name is not known.
+     */
+    public static MessageShape toMessageShape(final String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param random The source of the varying values.
+     * @return a new message of this shape.
+     */
+    public MapMessage newMessage(final Random random) {
+        final Map<String, String> map = new HashMap<>();
+        map.put("host", "myappserver" + random.nextInt(3));
+        map.put("service", "service_" + random.nextInt(5));
+        if (this == SMALL) {
+            map.put("message", "completed");
+            return new MapMessage(map);
+        }
+        map.put("userId", "user" + random.nextInt(10));
+        map.put("duration", Integer.toString(random.nextInt(1000)));
+        if (this == TYPICAL) {
+            map.put("message", "completed");
+            return new MapMessage(map);
+        }
+        map.put("errorCode", "E" + (500 + random.nextInt(4)));
+        map.put("message", STACK_TRACE);
+        return new MapMessage(map);
+    }
+}
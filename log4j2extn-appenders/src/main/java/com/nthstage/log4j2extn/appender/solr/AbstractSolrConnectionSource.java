@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Closer;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.SolrPingResponse;
+
+/**
+ * Base class for {@link SolrConnectionSource}s that share one lazily created {@link SolrClient} between all leases. The
+ * client is only closed when it is invalidated after a failure or when the source is closed. Leases are counted, so an
+ * invalidated client is closed once its last lease is handed back, not while other senders still have requests in
+ * flight on it; the next lease gets a new client meanwhile. Sources that talk HTTP
+ * themselves can hold a reference to a {@link SolrHttpClientManager}, shared with every other source that uses the
+ * same servers and settings, which is released when the source is closed.
+ * 
+ * @author nthstage
+ *
+ */
+public abstract class AbstractSolrConnectionSource implements SolrConnectionSource {
+    protected static final Logger LOGGER = StatusLogger.getLogger();
+
+    private final SolrHttpClientManager httpClientManager;
+    private SolrClient solrClient;
+    /** The open leases of each client, including invalidated clients still in use. Guarded by this source. */
+    private final Map<SolrClient, Integer> leases = new IdentityHashMap<>();
+    private boolean closed;
+
+    protected AbstractSolrConnectionSource() {
+        this(null);
+    }
+
+    /**
+     * @param solrClient A client already built by the plugin factory, handed out until it is invalidated; may be
+     *                   {@code null}.
+     */
+    protected AbstractSolrConnectionSource(final SolrClient solrClient) {
+        this(solrClient, null);
+    }
+
+    /**
+     * @param solrClient A client already built by the plugin factory, handed out until it is invalidated; may be
+     *                   {@code null}.
+     * @param httpClientManager A reference to a shared HTTP client, released when the source is closed; may be
+     *                          {@code null}.
+     */
+    AbstractSolrConnectionSource(final SolrClient solrClient, final SolrHttpClientManager httpClientManager) {
+        this.solrClient = solrClient;
+        this.httpClientManager = httpClientManager;
+    }
+
+    /**
+     * @return the shared HTTP client handed to the constructor; it must not be closed.
+     */
+    final CloseableHttpClient getHttpClient() {
+        return this.httpClientManager.getHttpClient();
+    }
+
+    /**
+     * @return the shared HTTP client manager handed to the constructor.
+     */
+    final SolrHttpClientManager getHttpClientManager() {
+        return this.httpClientManager;
+    }
+
+    /**
+     * Creates a new client; called on the first lease and on the first lease after an invalidation.
+     *
+     * @return the new client.
+     * @throws SolrServerException if the client cannot be created.
+     */
+    protected abstract SolrClient createSolrClient() throws SolrServerException;
+
+    /**
+     * Closes a client created by {@link #createSolrClient()}. Subclasses that hand the client resources it does not
+     * own, such as an HTTP client, can override this to decide which of them to release.
+     *
+     * @param solrClient the client to close.
+     */
+    protected void closeSolrClient(final SolrClient solrClient) {
+        try {
+            Closer.close(solrClient);
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to close Solr client {}", solrClient, e);
+        }
+    }
+
+    @Override
+    public synchronized SolrClient getSolrClient() throws SolrServerException {
+        if (this.closed) {
+            throw new SolrServerException("Connection source " + this + " is closed.");
+        }
+        if (this.solrClient == null) {
+            this.solrClient = this.createSolrClient();
+        }
+        final Integer leased = this.leases.get(this.solrClient);
+        this.leases.put(this.solrClient, leased == null ? 1 : leased + 1);
+        return this.solrClient;
+    }
+
+    @Override
+    public void releaseSolrClient(final SolrClient solrClient) {
+        // the current client is shared and stays open until it is invalidated or the source is closed
+        if (this.endLease(solrClient, false)) {
+            this.closeSolrClient(solrClient);
+        }
+    }
+
+    @Override
+    public void invalidateSolrClient(final SolrClient solrClient) {
+        if (this.endLease(solrClient, true)) {
+            this.closeSolrClient(solrClient);
+        }
+    }
+
+    /**
+     * Ends a lease, retiring the client first if it is invalidated.
+     *
+     * @return {@code true} if the client is retired and this was its last lease, so it must be closed.
+     */
+    private synchronized boolean endLease(final SolrClient solrClient, final boolean invalidate) {
+        final Integer leased = this.leases.get(solrClient);
+        if (solrClient == null || leased == null) {
+            return false;
+        }
+        if (invalidate && solrClient == this.solrClient) {
+            this.solrClient = null;
+        }
+        if (leased > 1) {
+            this.leases.put(solrClient, leased - 1);
+            return false;
+        }
+        this.leases.remove(solrClient);
+        return solrClient != this.solrClient;
+    }
+
+    @Override
+    public boolean isClientEncoding() {
+        return false;
+    }
+
+    /**
+     * Sources whose clients send in the background override this, since their failures never reach
+     * {@link SolrClientManager}.
+     *
+     * @return the number of update requests that failed after a flush had handed them over, {@code 0} by default.
+     */
+    public long getFailedRequestCount() {
+        return 0;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        SolrClient client = null;
+        try {
+            client = this.getSolrClient();
+            final SolrPingResponse response = client.ping();
+            return response.getStatus() == 0;
+        } catch (final Exception e) {
+            LOGGER.debug("Solr health check failed for {}", this, e);
+            return false;
+        } finally {
+            this.releaseSolrClient(client);
+        }
+    }
+
+    @Override
+    public void close() {
+        final List<SolrClient> clients = new ArrayList<>();
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            if (this.solrClient != null) {
+                clients.add(this.solrClient);
+            }
+            // invalidated clients whose leases were never handed back
+            for (final SolrClient leased : this.leases.keySet()) {
+                if (leased != this.solrClient) {
+                    clients.add(leased);
+                }
+            }
+            this.solrClient = null;
+            this.leases.clear();
+        }
+        for (final SolrClient client : clients) {
+            this.closeSolrClient(client);
+        }
+        if (this.httpClientManager != null) {
+            this.httpClientManager.release();
+        }
+    }
+}
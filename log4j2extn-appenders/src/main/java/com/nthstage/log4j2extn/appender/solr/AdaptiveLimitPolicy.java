@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.Locale;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.Strings;
+
+/**
+ * Bounds how {@link SolrClientManager} tunes its batch size and the number of update requests it has in flight while
+ * it runs. Both limits grow additively while Solr answers within the target latency, and shrink multiplicatively when
+ * it answers slower or fails in a way that may pass, such as a timeout, a {@code 503} or a {@code 429}, like TCP's
+ * congestion window. The policy is configured with the {@code adaptiveLimits} attribute of the SOLR appender, a
+ * comma separated list of:
+ * <ul>
+ * <li>{@code minBatch=<n>} - the smallest batch size (default {@code 10}).</li>
+ * <li>{@code maxBatch=<n>} - the largest batch size (default {@code maxBatchDocuments}).</li>
+ * <li>{@code batchStep=<n>} - the documents added to the batch size after a full batch was sent within the target
+ * latency (default {@code minBatch}).</li>
+ * <li>{@code maxInFlight=<n>} - the most update requests sent at the same time (default the
+ * appender's {@code parallelism}, itself {@code 1} by default). One is added to
+ * the limit after that many requests in a row were answered within the target latency while all were in use.</li>
+ * <li>{@code targetLatency=<ms>} - the time an update request may take before the limits shrink (default
+ * {@code 500}).</li>
+ * <li>{@code decrease=<percent>} - the share of both limits kept when they shrink (default {@code 50}). They shrink
+ * at most once per target latency, so one slow burst costs one decrease.</li>
+ * </ul>
+ * The batch size starts at {@code bufferSize}, if set, otherwise at {@code minBatch}. For example
+ * {@code adaptiveLimits="minBatch=50,maxBatch=5000,maxInFlight=4,targetLatency=250"}.
+ *
+ * @author nthstage
+ *
+ */
+public final class AdaptiveLimitPolicy {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final int DEFAULT_MIN_BATCH = 10;
+    private static final long DEFAULT_TARGET_LATENCY_MILLIS = 500;
+    private static final int DEFAULT_DECREASE_PERCENT = 50;
+
+    private final int minBatch;
+    private final int maxBatch;
+    private final int batchStep;
+    private final int maxInFlight;
+    private final long targetLatencyMillis;
+    private final int decreasePercent;
+
+    private AdaptiveLimitPolicy(final int minBatch, final int maxBatch, final int batchStep, final int maxInFlight,
+            final long targetLatencyMillis, final int decreasePercent) {
+        this.minBatch = minBatch;
+        this.maxBatch = maxBatch;
+        this.batchStep = batchStep;
+        this.maxInFlight = maxInFlight;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.decreasePercent = decreasePercent;
+    }
+
+    public int getMinBatch() {
+        return this.minBatch;
+    }
+
+    /**
+     * @param defaultMaxBatch The largest batch size if none is configured.
+     * @return the largest batch size, at least {@link #getMinBatch()}.
+     */
+    public int getMaxBatch(final int defaultMaxBatch) {
+        return Math.max(this.minBatch, this.maxBatch > 0 ? this.maxBatch : defaultMaxBatch);
+    }
+
+    public int getBatchStep() {
+        return this.batchStep;
+    }
+
+    /**
+     * @param defaultMaxInFlight The most update requests in flight if none is configured.
+     * @return the most update requests in flight, at least {@code 1}.
+     */
+    public int getMaxInFlight(final int defaultMaxInFlight) {
+        return Math.max(1, this.maxInFlight > 0 ? this.maxInFlight : defaultMaxInFlight);
+    }
+
+    public long getTargetLatencyMillis() {
+        return this.targetLatencyMillis;
+    }
+
+    /**
+     * @return the percentage of a limit kept when it shrinks.
+     */
+    public int getDecreasePercent() {
+        return this.decreasePercent;
+    }
+
+    @Override
+    public String toString() {
+        return "minBatch=" + this.minBatch + ",maxBatch=" + this.maxBatch + ",batchStep=" + this.batchStep
+                + ",maxInFlight=" + this.maxInFlight + ",targetLatency=" + this.targetLatencyMillis + ",decrease="
+                + this.decreasePercent;
+    }
+
+    /**
+     * Parses the {@code adaptiveLimits} attribute.
+     *
+     * @param text The attribute value, may be empty.
+     * @return the policy, {@code null} if the value is empty, or {@code null} and an error logged if it is not valid;
+     *         check the value to tell them apart.
+     */
+    public static AdaptiveLimitPolicy toAdaptiveLimitPolicy(final String text) {
+        if (Strings.isEmpty(text)) {
+            return null;
+        }
+        int minBatch = DEFAULT_MIN_BATCH;
+        int maxBatch = 0;
+        int batchStep = 0;
+        int maxInFlight = 0;
+        long targetLatencyMillis = DEFAULT_TARGET_LATENCY_MILLIS;
+        int decreasePercent = DEFAULT_DECREASE_PERCENT;
+        for (final String token : text.split(",")) {
+            final String trimmed = token.trim();
+            final int eq = trimmed.indexOf('=');
+            if (eq < 0) {
+                LOGGER.error("Adaptive limit [{}] needs a value, e.g. maxInFlight=4, in [{}].", trimmed, text);
+                return null;
+            }
+            final String key = trimmed.substring(0, eq).trim().toLowerCase(Locale.ENGLISH);
+            long value;
+            try {
+                value = Long.parseLong(trimmed.substring(eq + 1).trim());
+            } catch (final NumberFormatException e) {
+                value = 0;
+            }
+            if (value < 1 || value > Integer.MAX_VALUE) {
+                LOGGER.error("Adaptive limit [{}] needs a number of at least 1 in [{}].", trimmed, text);
+                return null;
+            }
+            if (key.equals("minbatch")) {
+                minBatch = (int) value;
+            } else if (key.equals("maxbatch")) {
+                maxBatch = (int) value;
+            } else if (key.equals("batchstep")) {
+                batchStep = (int) value;
+            } else if (key.equals("maxinflight")) {
+                maxInFlight = (int) value;
+            } else if (key.equals("targetlatency")) {
+                targetLatencyMillis = value;
+            } else if (key.equals("decrease") && value < 100) {
+                decreasePercent = (int) value;
+            } else if (key.equals("decrease")) {
+                LOGGER.error("Adaptive limit [{}] needs a percentage below 100 in [{}].", trimmed, text);
+                return null;
+            } else {
+                LOGGER.error("Unknown adaptive limit [{}] in [{}].", trimmed, text);
+                return null;
+            }
+        }
+        return new AdaptiveLimitPolicy(minBatch, maxBatch, batchStep > 0 ? batchStep : minBatch, maxInFlight,
+                targetLatencyMillis, decreasePercent);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes the batch size and the number of update requests in flight within the bounds of an
+ * {@link AdaptiveLimitPolicy}: additive increase while Solr answers within the target latency, multiplicative
+ * decrease when it answers slower or fails in a way that may pass. Senders take a permit with {@link #acquire()}
+ * before they talk to Solr and report every answer.
+ *
+ * @author nthstage
+ *
+ */
+final class AdaptiveLimiter {
+
+    private final int minBatch;
+    private final int maxBatch;
+    private final int batchStep;
+    private final int maxInFlight;
+    private final long targetLatencyNanos;
+    private final int decreasePercent;
+
+    private volatile int batchLimit;
+    private volatile int inFlightLimit;
+    private int inFlight;
+    /** Requests answered within the target latency while every permit was taken, since the last change. */
+    private int saturatedSuccesses;
+    private long decreasedAtNanos;
+
+    /**
+     * @param policy The bounds.
+     * @param defaultMaxBatch The largest batch size if the policy sets none.
+     * @param initialBatch The batch size to start with, or {@code 0} to start with the smallest.
+     * @param defaultMaxInFlight The most update requests in flight if the policy sets none.
+     */
+    AdaptiveLimiter(final AdaptiveLimitPolicy policy, final int defaultMaxBatch, final int initialBatch,
+            final int defaultMaxInFlight) {
+        this.minBatch = policy.getMinBatch();
+        this.maxBatch = policy.getMaxBatch(defaultMaxBatch);
+        this.batchStep = policy.getBatchStep();
+        this.maxInFlight = policy.getMaxInFlight(defaultMaxInFlight);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(policy.getTargetLatencyMillis());
+        this.decreasePercent = policy.getDecreasePercent();
+        this.batchLimit = Math.max(this.minBatch, Math.min(this.maxBatch, initialBatch));
+        this.inFlightLimit = 1;
+        this.decreasedAtNanos = System.nanoTime() - this.targetLatencyNanos;
+    }
+
+    /**
+     * @return the number of documents a flush should hold.
+     */
+    int getBatchLimit() {
+        return this.batchLimit;
+    }
+
+    int getMaxBatch() {
+        return this.maxBatch;
+    }
+
+    /**
+     * @return the number of update requests that may be in flight now.
+     */
+    int getInFlightLimit() {
+        return this.inFlightLimit;
+    }
+
+    int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    /**
+     * Waits until fewer requests than the limit are in flight and takes a permit. An interrupt does not end the wait;
+     * it is restored once the permit is taken.
+     */
+    synchronized void acquire() {
+        boolean interrupted = false;
+        while (this.inFlight >= this.inFlightLimit) {
+            try {
+                this.wait();
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        this.inFlight++;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return {@code true} if a permit was taken within {@code timeoutMillis}.
+     */
+    synchronized boolean tryAcquire(final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (this.inFlight >= this.inFlightLimit) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        this.inFlight++;
+        return true;
+    }
+
+    synchronized void release() {
+        this.inFlight--;
+        this.notifyAll();
+    }
+
+    /**
+     * Reports an update request Solr answered.
+     *
+     * @param fullBatch {@code true} if the flush the request belongs to held at least {@link #getBatchLimit()}
+     *                  documents, so a larger limit would have made a larger batch.
+     * @param latencyNanos How long the request took.
+     */
+    synchronized void onResponse(final boolean fullBatch, final long latencyNanos) {
+        if (latencyNanos > this.targetLatencyNanos) {
+            this.decrease();
+            return;
+        }
+        if (fullBatch && this.batchLimit < this.maxBatch) {
+            this.batchLimit = Math.min(this.maxBatch, this.batchLimit + this.batchStep);
+        }
+        // like a congestion window, the limit grows by one per round of requests that all fit
+        if (this.inFlight >= this.inFlightLimit && this.inFlightLimit < this.maxInFlight
+                && ++this.saturatedSuccesses >= this.inFlightLimit) {
+            this.inFlightLimit++;
+            this.saturatedSuccesses = 0;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Reports an update request that failed in a way that may pass, such as a timeout or an overloaded server.
+     */
+    synchronized void onOverload() {
+        this.decrease();
+    }
+
+    private void decrease() {
+        final long now = System.nanoTime();
+        if (now - this.decreasedAtNanos < this.targetLatencyNanos) {
+            // the requests in flight when the limits shrank report the same congestion
+            return;
+        }
+        this.decreasedAtNanos = now;
+        this.batchLimit = Math.max(this.minBatch, (int) ((long) this.batchLimit * this.decreasePercent / 100));
+        this.inFlightLimit = Math.max(1, this.inFlightLimit * this.decreasePercent / 100);
+        this.saturatedSuccesses = 0;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+/**
+ * Stops requests to a server that keeps failing. After {@code breakAfter} failures in a row the breaker opens and
+ * {@link #allowRequest()} refuses requests for {@code breakMillis}; then one trial request is let through per
+ * {@code breakMillis}. The first success closes the breaker.
+ *
+ * @author nthstage
+ *
+ */
+final class CircuitBreaker {
+
+    private final int breakAfter;
+    private final long breakMillis;
+
+    private int consecutiveFailures;
+    private long openUntilMillis;
+
+    /**
+     * @param breakAfter The number of consecutive failures that opens the breaker, or {@code 0} to never open.
+     * @param breakMillis How long the breaker stays open.
+     */
+    CircuitBreaker(final int breakAfter, final long breakMillis) {
+        this.breakAfter = breakAfter;
+        this.breakMillis = breakMillis;
+    }
+
+    private boolean isTripped() {
+        return this.breakAfter > 0 && this.consecutiveFailures >= this.breakAfter;
+    }
+
+    /**
+     * @return {@code true} if a request may be sent now.
+     */
+    synchronized boolean allowRequest() {
+        if (!this.isTripped()) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        if (now < this.openUntilMillis) {
+            return false;
+        }
+        // let this trial through and hold back the others, whether or not its outcome is ever reported
+        this.openUntilMillis = now + this.breakMillis;
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        this.consecutiveFailures = 0;
+    }
+
+    /**
+     * @return {@code true} if this failure opened the breaker.
+     */
+    synchronized boolean onFailure() {
+        final boolean wasTripped = this.isTripped();
+        if (this.consecutiveFailures < Integer.MAX_VALUE) {
+            this.consecutiveFailures++;
+        }
+        if (!this.isTripped()) {
+            return false;
+        }
+        this.openUntilMillis = System.currentTimeMillis() + this.breakMillis;
+        return !wasTripped;
+    }
+
+    /**
+     * @return {@code true} if requests are currently refused.
+     */
+    synchronized boolean isOpen() {
+        return this.isTripped() && System.currentTimeMillis() < this.openUntilMillis;
+    }
+}
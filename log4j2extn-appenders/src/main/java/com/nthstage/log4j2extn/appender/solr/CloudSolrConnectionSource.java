@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.util.Booleans;
+import org.apache.logging.log4j.util.Strings;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.SolrException;
+
+/**
+ * A {@link SolrConnectionSource} for SolrCloud. A {@link CloudSolrClient} reads the cluster state from ZooKeeper,
+ * splits every update request by the shard each document hashes to and sends the parts straight to the shard leaders,
+ * in parallel, so no node has to forward documents to the others.
+ * <p>
+ * Documents are routed by their unique key, so the appender must have a field named like {@code idField}, for example
+ * {@code <Field name="id" pattern="%uuid"/>}; documents without it are sent to any node, which forwards them.
+ * </p>
+ *
+ * @author nthstage
+ *
+ */
+@Plugin(name = "CloudSolrConnectionSource", category = "Core", elementType = "solrConnectionSource", printObject = true)
+public final class CloudSolrConnectionSource extends AbstractSolrConnectionSource {
+
+    private static final String DEFAULT_ID_FIELD = "id";
+    private static final int DEFAULT_ZK_CLIENT_TIMEOUT_MILLIS = 15000;
+    private static final int DEFAULT_ZK_CONNECT_TIMEOUT_MILLIS = 15000;
+
+    private final List<String> zkHosts;
+    private final String zkChroot;
+    private final String collection;
+    private final String idField;
+    private final boolean updatesToLeadersOnly;
+    private final int zkClientTimeoutMillis;
+    private final int zkConnectTimeoutMillis;
+    private final String description;
+
+    private CloudSolrConnectionSource(final List<String> zkHosts, final String zkChroot, final String collection,
+            final String idField, final boolean updatesToLeadersOnly, final int zkClientTimeoutMillis,
+            final int zkConnectTimeoutMillis) {
+        this.zkHosts = zkHosts;
+        this.zkChroot = zkChroot;
+        this.collection = collection;
+        this.idField = idField;
+        this.updatesToLeadersOnly = updatesToLeadersOnly;
+        this.zkClientTimeoutMillis = zkClientTimeoutMillis;
+        this.zkConnectTimeoutMillis = zkConnectTimeoutMillis;
+        this.description = "solrClient{ name=" + CloudSolrConnectionSource.class.getName() + ", zkHost=" + zkHosts
+                + (zkChroot == null ? "" : zkChroot) + ", collection=" + collection + " }";
+    }
+
+    @Override
+    protected SolrClient createSolrClient() throws SolrException {
+        final CloudSolrClient.Builder builder = new CloudSolrClient.Builder().withZkHost(this.zkHosts);
+        if (this.zkChroot != null) {
+            builder.withZkChroot(this.zkChroot);
+        }
+        if (this.updatesToLeadersOnly) {
+            builder.sendUpdatesOnlyToShardLeaders();
+        } else {
+            builder.sendUpdatesToAllReplicasInShard();
+        }
+        final CloudSolrClient solrClient = builder.build();
+        solrClient.setDefaultCollection(this.collection);
+        solrClient.setIdField(this.idField);
+        solrClient.setParallelUpdates(true);
+        solrClient.setZkClientTimeout(this.zkClientTimeoutMillis);
+        solrClient.setZkConnectTimeout(this.zkConnectTimeoutMillis);
+        return solrClient;
+    }
+
+    @Override
+    public boolean isClientEncoding() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return this.description;
+    }
+
+    /**
+     * Factory method for creating a SolrCloud connection source within the plugin manager.
+     *
+     * @param zkHost The ZooKeeper ensemble, as a comma separated list of {@code host:port}, optionally followed by a
+     *               chroot such as {@code /solr}.
+     * @param collection The collection to index into.
+     * @param idField The unique key field documents are routed by, {@code id} by default.
+     * @param updatesToLeadersOnly If {@code "true"} (the default), updates go to shard leaders only; otherwise to any
+     *                             replica of the shard.
+     * @param zkClientTimeoutMillis The ZooKeeper session timeout, 15000 by default.
+     * @param zkConnectTimeoutMillis The ZooKeeper connect timeout, 15000 by default.
+     * @return the created Solr connection source.
+     */
+    @PluginFactory
+    public static SolrConnectionSource createConnectionSource(@PluginAttribute("zkHost") final String zkHost,
+            @PluginAttribute("collection") final String collection,
+            @PluginAttribute("idField") final String idField,
+            @PluginAttribute("updatesToLeadersOnly") final String updatesToLeadersOnly,
+            @PluginAttribute("zkClientTimeoutMillis") final String zkClientTimeoutMillis,
+            @PluginAttribute("zkConnectTimeoutMillis") final String zkConnectTimeoutMillis) {
+        if (Strings.isEmpty(zkHost)) {
+            LOGGER.error("No ZooKeeper host provided for the SolrCloud connection source.");
+            return null;
+        }
+        if (Strings.isEmpty(collection)) {
+            LOGGER.error("No collection provided for the SolrCloud connection source.");
+            return null;
+        }
+        String hosts = zkHost.trim();
+        String chroot = null;
+        final int slash = hosts.indexOf('/');
+        if (slash >= 0) {
+            chroot = hosts.substring(slash);
+            hosts = hosts.substring(0, slash);
+        }
+        final List<String> zkHosts = new ArrayList<>();
+        for (final String host : hosts.split(",")) {
+            if (Strings.isNotEmpty(host.trim())) {
+                zkHosts.add(host.trim());
+            }
+        }
+        if (zkHosts.isEmpty()) {
+            LOGGER.error("No ZooKeeper host in [{}].", zkHost);
+            return null;
+        }
+        return new CloudSolrConnectionSource(zkHosts, chroot, collection.trim(),
+                Strings.isEmpty(idField) ? DEFAULT_ID_FIELD : idField.trim(),
+                Booleans.parseBoolean(updatesToLeadersOnly, true),
+                AbstractAppender.parseInt(zkClientTimeoutMillis, DEFAULT_ZK_CLIENT_TIMEOUT_MILLIS),
+                AbstractAppender.parseInt(zkConnectTimeoutMillis, DEFAULT_ZK_CONNECT_TIMEOUT_MILLIS));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.Locale;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.Strings;
+
+/**
+ * Decides when {@link SolrClientManager} asks Solr to commit the documents it has sent. The policy is configured with
+ * the {@code commitPolicy} attribute of the SOLR appender, a comma separated list of:
+ * <ul>
+ * <li>{@code flush} - a commit after every flush (the default).</li>
+ * <li>{@code none} - never commit; rely on the server's {@code autoCommit}/{@code autoSoftCommit}.</li>
+ * <li>{@code commitWithin=<ms>} - ask Solr to commit each update request within the given time.</li>
+ * <li>{@code interval=<ms>} - commit on a timer, if anything was sent since the last commit.</li>
+ * <li>{@code documents=<n>} - commit once at least {@code n} documents were sent since the last commit.</li>
+ * <li>{@code soft} - issue soft commits instead of hard commits. On its own it means a soft commit after every
+ * flush.</li>
+ * </ul>
+ * For example {@code commitPolicy="interval=60000,soft"}.
+ *
+ * @author nthstage
+ *
+ */
+public final class CommitPolicy {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    /**
+     * When commits are issued.
+     */
+    public enum Mode {
+        NONE, FLUSH, COMMIT_WITHIN, INTERVAL, DOCUMENTS
+    }
+
+    /** The legacy behaviour: a hard commit after every flush. */
+    public static final CommitPolicy DEFAULT = new CommitPolicy(Mode.FLUSH, 0, false);
+
+    private final Mode mode;
+    private final long value;
+    private final boolean softCommit;
+
+    private CommitPolicy(final Mode mode, final long value, final boolean softCommit) {
+        this.mode = mode;
+        this.value = value;
+        this.softCommit = softCommit;
+    }
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    public boolean isSoftCommit() {
+        return this.softCommit;
+    }
+
+    /**
+     * @return the {@code commitWithin} time to put on every update request, or {@code -1} if none.
+     */
+    public int getCommitWithinMillis() {
+        return this.mode == Mode.COMMIT_WITHIN ? (int) this.value : -1;
+    }
+
+    /**
+     * @return the period of the commit timer in milliseconds, or {@code 0} if commits are not timed.
+     */
+    public long getIntervalMillis() {
+        return this.mode == Mode.INTERVAL ? this.value : 0;
+    }
+
+    /**
+     * Decides whether a flush should be followed by a commit.
+     *
+     * @param uncommittedDocuments The number of documents sent since the last commit, including this flush.
+     * @return {@code true} if the manager should commit now.
+     */
+    public boolean isCommitAfterFlush(final long uncommittedDocuments) {
+        switch (this.mode) {
+        case FLUSH:
+            return uncommittedDocuments > 0;
+        case DOCUMENTS:
+            return uncommittedDocuments >= this.value;
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        final String name = this.mode.name().toLowerCase(Locale.ENGLISH);
+        final String text = this.value > 0 ? name + '=' + this.value : name;
+        return this.softCommit ? text + ",soft" : text;
+    }
+
+    /**
+     * Parses the {@code commitPolicy} attribute.
+     *
+     * @param text The attribute value, may be empty.
+     * @return the policy, or {@code null} if the value is not valid.
+     */
+    public static CommitPolicy toCommitPolicy(final String text) {
+        if (Strings.isEmpty(text)) {
+            return DEFAULT;
+        }
+        Mode mode = null;
+        long value = 0;
+        boolean softCommit = false;
+        for (final String token : text.split(",")) {
+            final String trimmed = token.trim();
+            final int eq = trimmed.indexOf('=');
+            final String key = (eq < 0 ? trimmed : trimmed.substring(0, eq)).trim().toLowerCase(Locale.ENGLISH);
+            if (key.equals("soft")) {
+                softCommit = true;
+                continue;
+            }
+            if (mode != null) {
+                LOGGER.error("Only one of none, flush, commitWithin, interval and documents may be given in commit policy [{}].",
+                        text);
+                return null;
+            }
+            if (key.equals("none")) {
+                mode = Mode.NONE;
+            } else if (key.equals("flush")) {
+                mode = Mode.FLUSH;
+            } else if (key.equals("commitwithin")) {
+                mode = Mode.COMMIT_WITHIN;
+            } else if (key.equals("interval")) {
+                mode = Mode.INTERVAL;
+            } else if (key.equals("documents")) {
+                mode = Mode.DOCUMENTS;
+            } else {
+                LOGGER.error("Unknown commit policy [{}] in [{}].", trimmed, text);
+                return null;
+            }
+            final boolean needsValue = mode == Mode.COMMIT_WITHIN || mode == Mode.INTERVAL || mode == Mode.DOCUMENTS;
+            if (needsValue) {
+                try {
+                    value = eq < 0 ? -1 : Long.parseLong(trimmed.substring(eq + 1).trim());
+                } catch (final NumberFormatException e) {
+                    value = -1;
+                }
+                if (value <= 0 || (mode == Mode.COMMIT_WITHIN && value > Integer.MAX_VALUE)) {
+                    LOGGER.error("Commit policy [{}] needs a positive number, e.g. {}=1000.", trimmed, key);
+                    return null;
+                }
+            }
+        }
+        if (mode == null) {
+            mode = Mode.FLUSH;
+        }
+        if (mode == Mode.COMMIT_WITHIN && softCommit) {
+            LOGGER.warn("The soft option has no effect with commitWithin in commit policy [{}].", text);
+        }
+        return new CommitPolicy(mode, value, softCommit);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.util.Closer;
+import org.apache.logging.log4j.util.Strings;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.impl.BinaryResponseParser;
+import org.apache.solr.client.solrj.impl.ConcurrentUpdateSolrClient;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+/**
+ * A {@link SolrConnectionSource} that streams updates to Solr with a {@link ConcurrentUpdateSolrClient}. Update
+ * requests are queued and written by background threads into long-lived HTTP requests in the binary javabin format,
+ * so a flush returns once its documents are queued rather than once Solr has indexed them.
+ * <p>
+ * Because sending is asynchronous, indexing errors do not reach the appender; they are reported to the status logger
+ * and counted in {@link SolrClientManager#getStreamingFailureCount()}. Commits wait until everything queued before
+ * them has been sent.
+ * </p>
+ * <p>
+ * Once queued, documents are out of the appender's hands: its {@code retryPolicy}, {@code spool} and
+ * {@code deadLetterAppender} only cover failures to queue them, and the documents of a request that fails while
+ * streaming are lost.
+ * </p>
+ * <p>
+ * SolrJ's streaming client only works with HTTP clients created by SolrJ itself, so {@code https} urls use the JVM's
+ * default SSL settings ({@code javax.net.ssl.*} system properties) rather than an {@code SslConfiguration} element.
+ * </p>
+ *
+ * @author nthstage
+ *
+ */
+@Plugin(name = "ConcurrentUpdateSolrConnectionSource", category = "Core", elementType = "solrConnectionSource", printObject = true)
+public final class ConcurrentUpdateSolrConnectionSource extends AbstractSolrConnectionSource {
+
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_THREAD_COUNT = 1;
+    private static final int DEFAULT_POLL_QUEUE_TIME_MILLIS = 250;
+
+    private final String solrUrl;
+    private final CloseableHttpClient httpClient;
+    private final int queueSize;
+    private final int threadCount;
+    private final int pollQueueTimeMillis;
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final String description;
+
+    private ConcurrentUpdateSolrConnectionSource(final String solrUrl, final CloseableHttpClient httpClient,
+            final int queueSize, final int threadCount, final int pollQueueTimeMillis) {
+        this.solrUrl = solrUrl;
+        this.httpClient = httpClient;
+        this.queueSize = queueSize;
+        this.threadCount = threadCount;
+        this.pollQueueTimeMillis = pollQueueTimeMillis;
+        this.description = "solrClient{ name=" + ConcurrentUpdateSolrConnectionSource.class.getName() + ", url="
+                + solrUrl + ", queueSize=" + queueSize + ", threadCount=" + threadCount + " }";
+    }
+
+    @Override
+    protected SolrClient createSolrClient() throws SolrException {
+        final ConcurrentUpdateSolrClient solrClient = new StreamingSolrClient(this.solrUrl, this.httpClient,
+                this.queueSize, this.threadCount, this.failedRequests);
+        solrClient.setRequestWriter(new BinaryRequestWriter());
+        solrClient.setParser(new BinaryResponseParser());
+        solrClient.setPollQueueTime(this.pollQueueTimeMillis);
+        return solrClient;
+    }
+
+    @Override
+    public boolean isClientEncoding() {
+        return true;
+    }
+
+    /**
+     * @return the number of streamed update requests Solr failed to process.
+     */
+    @Override
+    public long getFailedRequestCount() {
+        return this.failedRequests.get();
+    }
+
+    @Override
+    public void close() {
+        // closing the client waits for the queued updates to be sent
+        super.close();
+        try {
+            Closer.close(this.httpClient);
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to close HTTP client of {}", this, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.description;
+    }
+
+    /**
+     * Factory method for creating a streaming solr connection source within the plugin manager.
+     *
+     * @param solrServerHost The host url of the SOLR Server
+     * @param solrCore The core or collection to index into.
+     * @param queueSize The number of update requests that can be queued before flushes wait, 1000 by default.
+     * @param threadCount The number of threads streaming to Solr, 1 by default.
+     * @param pollQueueTimeMillis How long a streaming request stays open waiting for more updates, 250 by default.
+     * @return the created Solr connection source.
+     */
+    @PluginFactory
+    public static SolrConnectionSource createConnectionSource(@PluginAttribute("solrServerHost") final String solrServerHost,
+            @PluginAttribute("solrCore") final String solrCore,
+            @PluginAttribute("queueSize") final String queueSize,
+            @PluginAttribute("threadCount") final String threadCount,
+            @PluginAttribute("pollQueueTimeMillis") final String pollQueueTimeMillis) {
+        if (Strings.isEmpty(solrServerHost)) {
+            LOGGER.error("No Solr Server host url provided.");
+            return null;
+        }
+        String solrUrl = solrServerHost.trim();
+        if (Strings.isNotEmpty(solrCore)) {
+            if (!solrUrl.endsWith("/")) {
+                solrUrl += "/";
+            }
+            solrUrl += solrCore.trim();
+        }
+        final int queueSizeInt = AbstractAppender.parseInt(queueSize, DEFAULT_QUEUE_SIZE);
+        final int threadCountInt = AbstractAppender.parseInt(threadCount, DEFAULT_THREAD_COUNT);
+        final int pollQueueTimeInt = AbstractAppender.parseInt(pollQueueTimeMillis, DEFAULT_POLL_QUEUE_TIME_MILLIS);
+        if (queueSizeInt < 1 || threadCountInt < 1 || pollQueueTimeInt < 0) {
+            LOGGER.error("queueSize and threadCount must be positive and pollQueueTimeMillis must not be negative.");
+            return null;
+        }
+        // one connection per streaming thread, plus one for commits and pings
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, threadCountInt + 1);
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, threadCountInt + 1);
+        final CloseableHttpClient httpClient;
+        try {
+            httpClient = HttpClientUtil.createClient(params);
+        } catch (final SolrException e) {
+            LOGGER.error(e.getMessage(), e);
+            return null;
+        }
+        return new ConcurrentUpdateSolrConnectionSource(solrUrl, httpClient, queueSizeInt, threadCountInt,
+                pollQueueTimeInt);
+    }
+
+    /**
+     * Reports streaming failures to the status logger instead of SolrJ's own logging.
+     */
+    private static final class StreamingSolrClient extends ConcurrentUpdateSolrClient {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient AtomicLong failedRequests;
+
+        // the builder cannot create subclasses, and overriding handleError is the only way to see streaming errors
+        @SuppressWarnings("deprecation")
+        StreamingSolrClient(final String solrUrl, final HttpClient httpClient, final int queueSize,
+                final int threadCount, final AtomicLong failedRequests) {
+            super(solrUrl, httpClient, queueSize, threadCount);
+            this.failedRequests = failedRequests;
+        }
+
+        @Override
+        public void handleError(final Throwable ex) {
+            this.failedRequests.incrementAndGet();
+            LOGGER.error("Failed to stream log events to SOLR", ex);
+        }
+    }
+}
@@ -0,0 +1,579 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * A write-ahead log on local disk for documents that could not be sent to Solr. Documents are appended as records to
+ * memory-mapped segment files of a fixed size and read back in order by {@link #replay(DocumentWriter, int)}; a
+ * segment is deleted once all of its records have been replayed and acknowledged.
+ * <p>
+ * A record is a header of two 32 bit integers, the length of the body and its CRC32, followed by the fields of one
+ * document: a kind byte, the name, and the value, either text or a zigzag encoded variable length integer. A routed
+ * document starts with a collection entry, a kind byte and the collection name. Text is a
+ * variable length character count followed by each UTF-16 character encoded on one to three bytes. A record whose
+ * checksum does not match, such as one torn by a crash, ends its segment. The replay position is kept in a checkpoint
+ * file, so documents are replayed at least once across restarts.
+ * </p>
+ * <p>
+ * The spool holds at most {@code maxBytes} of segments; documents that do not fit are dropped and counted. Methods are
+ * thread safe, but a caller writing a document must hold the spool's monitor from {@link #startDocument()} to
+ * {@link #endDocument()}.
+ * </p>
+ *
+ * @author nthstage
+ *
+ */
+final class DiskSpool implements DocumentWriter, Closeable {
+
+    static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    private static final int MIN_SEGMENT_BYTES = 64 * 1024;
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String LOCK_FILE = "lock";
+
+    private static final int HEADER_BYTES = 8;
+    private static final int CHECKPOINT_BYTES = 12;
+
+    private static final byte TEXT_FIELD = 1;
+    private static final byte LONG_FIELD = 2;
+    private static final byte COLLECTION = 3;
+
+    private final File directory;
+    private final long maxBytes;
+    private final int segmentBytes;
+
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    private final MappedByteBuffer checkpoint;
+
+    /** The segments, oldest first; records are appended to the last one. */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private int writeOffset;
+
+    /** The position of the oldest record not yet acknowledged. */
+    private Segment readSegment;
+    private int readOffset;
+
+    /** The position after the records handed out by the last replay, made durable by {@link #acknowledge()}. */
+    private Segment replaySegment;
+    private int replayOffset;
+    private int replayDocuments;
+
+    private long pendingDocuments;
+    private long droppedDocuments;
+
+    /** The record being written, body after a header gap, or the body of the record being read. */
+    private byte[] record = new byte[4096];
+    private int recordLength;
+    private int readPosition;
+    private boolean inDocument;
+    private final CRC32 crc = new CRC32();
+    private final StringBuilder text = new StringBuilder();
+
+    private DiskSpool(final File directory, final long maxBytes, final int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, segmentBytes);
+        this.maxBytes = Math.max(this.segmentBytes, maxBytes);
+        this.lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+        FileLock fileLock;
+        try {
+            fileLock = this.lockFile.getChannel().tryLock();
+        } catch (final OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            this.lockFile.close();
+            throw new IOException("Spool directory " + directory + " is in use by another appender");
+        }
+        this.lock = fileLock;
+        try {
+            this.checkpoint = map(new File(directory, CHECKPOINT_FILE), CHECKPOINT_BYTES);
+        } catch (final IOException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the spool in a directory, creating it if needed, and recovers the documents left by a previous run.
+     *
+     * @param directory The spool directory; only one appender may use it at a time.
+     * @param maxBytes The disk quota for segment files.
+     * @param segmentBytes The size of one segment file; records larger than this are dropped.
+     * @return the spool.
+     * @throws IOException if the directory cannot be used.
+     */
+    static DiskSpool open(final File directory, final long maxBytes, final int segmentBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + directory);
+        }
+        final DiskSpool spool = new DiskSpool(directory, maxBytes, segmentBytes);
+        try {
+            spool.recover();
+        } catch (final IOException e) {
+            spool.close();
+            throw e;
+        } catch (final RuntimeException e) {
+            spool.close();
+            throw e;
+        }
+        return spool;
+    }
+
+    private static MappedByteBuffer map(final File file, final long size) throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void recover() throws IOException {
+        final List<Long> sequences = new ArrayList<>();
+        final File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        sequences.add(Long.valueOf(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (final NumberFormatException e) {
+                        LOGGER.warn("Ignoring unexpected file {} in SOLR spool directory", file);
+                    }
+                }
+            }
+        }
+        Collections.sort(sequences);
+        final long checkpointSequence = this.checkpoint.getLong(0);
+        for (final Long sequence : sequences) {
+            final File file = this.segmentFile(sequence);
+            if (sequence < checkpointSequence) {
+                // fully replayed before the last run ended
+                deleteFile(file);
+                continue;
+            }
+            final long length = file.length();
+            if (length < HEADER_BYTES || length > Integer.MAX_VALUE) {
+                deleteFile(file);
+                continue;
+            }
+            this.segments.addLast(new Segment(sequence, file, map(file, length)));
+        }
+        if (this.segments.isEmpty()) {
+            this.segments.addLast(this.newSegment(checkpointSequence + 1));
+            this.readSegment = this.segments.getFirst();
+            this.readOffset = 0;
+            this.saveCheckpoint();
+        } else {
+            this.readSegment = this.segments.getFirst();
+            this.readOffset = this.readSegment.sequence == checkpointSequence ? this.checkpoint.getInt(8) : 0;
+        }
+        // count the records still to be replayed and find the end of the last segment
+        int offset = this.readOffset;
+        for (final Segment segment : this.segments) {
+            int next;
+            while ((next = this.readRecord(segment, offset)) > 0) {
+                this.pendingDocuments++;
+                offset = next;
+            }
+            if (segment != this.segments.getLast()) {
+                offset = 0;
+            }
+        }
+        this.writeOffset = offset;
+        final Segment last = this.segments.getLast();
+        if (offset + 4 <= last.buffer.capacity() && last.buffer.getInt(offset) != 0) {
+            // the remains of a torn record; clear them so they cannot be mistaken for records written later
+            for (int i = offset; i < last.buffer.capacity(); i++) {
+                last.buffer.put(i, (byte) 0);
+            }
+        }
+        if (this.pendingDocuments > 0) {
+            LOGGER.info("Recovered {} spooled SOLR documents from {}", this.pendingDocuments, this.directory);
+        }
+    }
+
+    private File segmentFile(final long sequence) {
+        return new File(this.directory, String.format("%016d%s", sequence, SEGMENT_SUFFIX));
+    }
+
+    private Segment newSegment(final long sequence) throws IOException {
+        final File file = this.segmentFile(sequence);
+        return new Segment(sequence, file, map(file, this.segmentBytes));
+    }
+
+    private static void deleteFile(final File file) {
+        if (!file.delete() && file.exists()) {
+            LOGGER.warn("Cannot delete SOLR spool file {}", file);
+        }
+    }
+
+    /**
+     * @return the number of documents spooled and not yet acknowledged.
+     */
+    synchronized long getPendingDocumentCount() {
+        return this.pendingDocuments;
+    }
+
+    /**
+     * @return the number of documents dropped because they did not fit within the quota.
+     */
+    synchronized long getDroppedDocumentCount() {
+        return this.droppedDocuments;
+    }
+
+    @Override
+    public synchronized void startDocument() {
+        this.recordLength = HEADER_BYTES;
+        this.inDocument = true;
+    }
+
+    @Override
+    public synchronized void abortDocument() {
+        this.inDocument = false;
+    }
+
+    @Override
+    public synchronized void setCollection(final String collection) {
+        if (collection != null) {
+            this.writeByte(COLLECTION);
+            this.writeText(collection);
+        }
+    }
+
+    @Override
+    public synchronized void addField(final String name, final CharSequence value) {
+        this.writeByte(TEXT_FIELD);
+        this.writeText(name);
+        this.writeText(value);
+    }
+
+    @Override
+    public synchronized void addField(final String name, final long value) {
+        this.writeByte(LONG_FIELD);
+        this.writeText(name);
+        this.writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Appends the document to the spool, or drops it if the spool is full.
+     */
+    @Override
+    public synchronized void endDocument() {
+        if (!this.inDocument) {
+            return;
+        }
+        this.inDocument = false;
+        final int bodyLength = this.recordLength - HEADER_BYTES;
+        if (this.recordLength > this.segmentBytes) {
+            this.drop("it is larger than a spool segment");
+            return;
+        }
+        Segment segment = this.segments.getLast();
+        if (this.writeOffset + this.recordLength > segment.buffer.capacity()) {
+            if ((long) (this.segments.size() + 1) * this.segmentBytes > this.maxBytes) {
+                this.drop("the spool is full");
+                return;
+            }
+            try {
+                segment.buffer.force();
+                segment = this.newSegment(segment.sequence + 1);
+            } catch (final IOException e) {
+                LOGGER.error("Cannot create SOLR spool segment in {}", this.directory, e);
+                this.drop("a new spool segment could not be created");
+                return;
+            }
+            this.segments.addLast(segment);
+            this.writeOffset = 0;
+        }
+        this.crc.reset();
+        this.crc.update(this.record, HEADER_BYTES, bodyLength);
+        final MappedByteBuffer buffer = segment.buffer;
+        buffer.position(this.writeOffset + HEADER_BYTES);
+        buffer.put(this.record, HEADER_BYTES, bodyLength);
+        buffer.putInt(this.writeOffset + 4, (int) this.crc.getValue());
+        // the length goes last; a zero length marks the end of the records
+        buffer.putInt(this.writeOffset, bodyLength);
+        this.writeOffset += this.recordLength;
+        this.pendingDocuments++;
+    }
+
+    private void drop(final String reason) {
+        if (this.droppedDocuments++ == 0) {
+            LOGGER.error("Dropping a SOLR document that cannot be spooled to {}: {}", this.directory, reason);
+        }
+    }
+
+    /**
+     * Writes the records appended so far to disk.
+     */
+    synchronized void force() {
+        this.segments.getLast().buffer.force();
+    }
+
+    /**
+     * Reads the oldest documents not yet acknowledged into a writer. The documents stay in the spool until
+     * {@link #acknowledge()} is called; a failed replay is simply repeated.
+     *
+     * @param target Receives the documents.
+     * @param maxDocuments The maximum number of documents to read.
+     * @return the number of documents read.
+     */
+    synchronized int replay(final DocumentWriter target, final int maxDocuments) {
+        Segment segment = this.readSegment;
+        int offset = this.readOffset;
+        int count = 0;
+        final Iterator<Segment> iterator = this.segments.iterator();
+        while (iterator.hasNext() && iterator.next() != segment) {
+            // advance to the read segment
+        }
+        while (count < maxDocuments) {
+            final int next = this.readRecord(segment, offset);
+            if (next > 0) {
+                this.decode(target);
+                offset = next;
+                count++;
+                continue;
+            }
+            if (!iterator.hasNext()) {
+                break;
+            }
+            if (next < 0) {
+                LOGGER.warn("Skipping the rest of corrupt SOLR spool segment {}", segment.file);
+            }
+            segment = iterator.next();
+            offset = 0;
+        }
+        this.replaySegment = segment;
+        this.replayOffset = offset;
+        this.replayDocuments = count;
+        return count;
+    }
+
+    /**
+     * Removes the documents read by the last {@link #replay(DocumentWriter, int)} from the spool, deleting the segments
+     * they emptied.
+     */
+    synchronized void acknowledge() {
+        if (this.replaySegment == null) {
+            return;
+        }
+        this.readSegment = this.replaySegment;
+        this.readOffset = this.replayOffset;
+        this.pendingDocuments -= this.replayDocuments;
+        this.replaySegment = null;
+        this.replayDocuments = 0;
+        this.saveCheckpoint();
+        while (this.segments.getFirst() != this.readSegment) {
+            deleteFile(this.segments.removeFirst().file);
+        }
+    }
+
+    private void saveCheckpoint() {
+        this.checkpoint.putLong(0, this.readSegment.sequence);
+        this.checkpoint.putInt(8, this.readOffset);
+        this.checkpoint.force();
+    }
+
+    /**
+     * Loads the body of the record at {@code offset} into {@link #record} and checks it.
+     *
+     * @return the offset of the next record, {@code 0} if there is no record at {@code offset}, or {@code -1} if the
+     *         record is corrupt.
+     */
+    private int readRecord(final Segment segment, final int offset) {
+        final MappedByteBuffer buffer = segment.buffer;
+        if (offset + HEADER_BYTES > buffer.capacity()) {
+            return 0;
+        }
+        final int length = buffer.getInt(offset);
+        if (length == 0) {
+            return 0;
+        }
+        if (length < 0 || length > buffer.capacity() - offset - HEADER_BYTES) {
+            return -1;
+        }
+        this.ensureCapacity(length);
+        buffer.position(offset + HEADER_BYTES);
+        buffer.get(this.record, 0, length);
+        this.crc.reset();
+        this.crc.update(this.record, 0, length);
+        if ((int) this.crc.getValue() != buffer.getInt(offset + 4)) {
+            return -1;
+        }
+        this.recordLength = length;
+        return offset + HEADER_BYTES + length;
+    }
+
+    private void decode(final DocumentWriter target) {
+        this.readPosition = 0;
+        target.startDocument();
+        target.setCollection(null);
+        while (this.readPosition < this.recordLength) {
+            final byte kind = this.record[this.readPosition++];
+            if (kind == COLLECTION) {
+                target.setCollection(this.readText().toString());
+                continue;
+            }
+            final String name = this.readText().toString();
+            if (kind == LONG_FIELD) {
+                final long zigzag = this.readVarLong();
+                target.addField(name, (zigzag >>> 1) ^ -(zigzag & 1));
+            } else {
+                target.addField(name, this.readText());
+            }
+        }
+        target.endDocument();
+    }
+
+    private void ensureCapacity(final int required) {
+        if (required > this.record.length) {
+            this.record = Arrays.copyOf(this.record, Math.max(required, this.record.length * 2));
+        }
+    }
+
+    private void writeByte(final int value) {
+        this.ensureCapacity(this.recordLength + 1);
+        this.record[this.recordLength++] = (byte) value;
+    }
+
+    private void writeVarLong(final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7fL) != 0) {
+            this.writeByte((int) (remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        this.writeByte((int) remaining);
+    }
+
+    private void writeText(final CharSequence value) {
+        final int count = value.length();
+        this.writeVarLong(count);
+        this.ensureCapacity(this.recordLength + count * 3);
+        final byte[] buf = this.record;
+        int pos = this.recordLength;
+        for (int i = 0; i < count; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        this.recordLength = pos;
+    }
+
+    private long readVarLong() {
+        long result = 0;
+        for (int shift = 0;; shift += 7) {
+            final byte b = this.record[this.readPosition++];
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private StringBuilder readText() {
+        final int count = (int) this.readVarLong();
+        final StringBuilder value = this.text;
+        value.setLength(0);
+        final byte[] buf = this.record;
+        int pos = this.readPosition;
+        for (int i = 0; i < count; i++) {
+            final int b = buf[pos++] & 0xff;
+            if (b < 0x80) {
+                value.append((char) b);
+            } else if (b < 0xe0) {
+                value.append((char) (((b & 0x1f) << 6) | (buf[pos++] & 0x3f)));
+            } else {
+                value.append((char) (((b & 0x0f) << 12) | ((buf[pos++] & 0x3f) << 6) | (buf[pos++] & 0x3f)));
+            }
+        }
+        this.readPosition = pos;
+        return value;
+    }
+
+    /**
+     * Writes pending records and releases the directory. Segment files stay on disk for the next run.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            if (!this.segments.isEmpty()) {
+                this.segments.getLast().buffer.force();
+            }
+            if (this.lock != null) {
+                this.lock.release();
+            }
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to release SOLR spool directory {}", this.directory, e);
+        } finally {
+            try {
+                this.lockFile.close();
+            } catch (final IOException e) {
+                LOGGER.warn("Failed to close SOLR spool lock file in {}", this.directory, e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DiskSpool{ directory=" + this.directory + ", maxBytes=" + this.maxBytes + ", segmentBytes="
+                + this.segmentBytes + " }";
+    }
+
+    private static final class Segment {
+        private final long sequence;
+        private final File file;
+        private final MappedByteBuffer buffer;
+
+        private Segment(final long sequence, final File file, final MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
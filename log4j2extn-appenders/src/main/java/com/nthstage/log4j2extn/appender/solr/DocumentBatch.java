@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.Arrays;
+
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+
+/**
+ * The documents of one flush, as {@link SolrClientManager} renders them field by field. How the documents are held
+ * depends on the transport: {@link UpdatePayload} encodes them straight into a request body, while
+ * {@link SolrInputDocumentBatch} builds documents for clients that encode them themselves.
+ * <p>
+ * Instances are reused across flushes and are not thread safe.
+ * </p>
+ *
+ * @author nthstage
+ *
+ */
+abstract class DocumentBatch implements DocumentWriter {
+
+    /** The collection of each document. */
+    private String[] collections = new String[64];
+
+    /**
+     * Discards all documents, keeping the buffers for the next batch.
+     */
+    abstract void reset();
+
+    abstract int getDocumentCount();
+
+    /**
+     * @return the size of document {@code index} on the wire, exact or estimated.
+     */
+    abstract int getDocumentSize(int index);
+
+    @Override
+    public void setCollection(final String collection) {
+        final int index = this.getDocumentCount() - 1;
+        if (index >= this.collections.length) {
+            this.collections = Arrays.copyOf(this.collections, Math.max(index + 1, this.collections.length * 2));
+        }
+        this.collections[index] = collection;
+    }
+
+    /**
+     * @return the collection of document {@code index}, or {@code null} for the one of the connection source.
+     */
+    final String getCollection(final int index) {
+        return this.collections[index];
+    }
+
+    /**
+     * Creates the update request for a run of documents.
+     *
+     * @param fromDocument The first document, inclusive.
+     * @param toDocument The last document, exclusive.
+     * @param commitWithinMillis The {@code commitWithin} time for the documents, or {@code -1} for none.
+     * @return the request, which must be sent before the batch is changed.
+     */
+    abstract AbstractUpdateRequest newRequest(int fromDocument, int toDocument, int commitWithinMillis);
+}
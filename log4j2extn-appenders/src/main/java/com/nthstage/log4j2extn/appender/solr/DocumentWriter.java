@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+/**
+ * Receives rendered documents field by field, as {@link SolrClientManager} produces them: a {@link DocumentBatch}
+ * bound for Solr, or the {@link DiskSpool} holding documents that could not be sent.
+ *
+ * @author nthstage
+ *
+ */
+interface DocumentWriter {
+
+    void startDocument();
+
+    /**
+     * Sets the collection or core the document started last goes to; called right after {@link #startDocument()}.
+     *
+     * @param collection The collection, or {@code null} for the one of the connection source.
+     */
+    void setCollection(String collection);
+
+    void endDocument();
+
+    /**
+     * Drops the document started last, for example because rendering one of its fields failed.
+     */
+    void abortDocument();
+
+    /**
+     * @param name The field name.
+     * @param value The value; only valid for the duration of the call.
+     */
+    void addField(String name, CharSequence value);
+
+    void addField(String name, long value);
+}
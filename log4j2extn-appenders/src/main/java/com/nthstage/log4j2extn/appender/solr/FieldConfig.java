@@ -15,18 +15,27 @@
  */
 package com.nthstage.log4j2extn.appender.solr;
 
+import java.util.List;
+import java.util.Map;
+
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.pattern.PatternFormatter;
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.Message;
 import org.apache.logging.log4j.status.StatusLogger;
 import org.apache.logging.log4j.util.Strings;
 
 /**
  * A configuration element used to configure which event properties are logged to which columns in the database table.
+ * The value of a field comes from exactly one of a pattern, a literal, the event timestamp, a {@link MapMessage} key or
+ * a {@code ThreadContext} key; how it is read is decided once, when the configuration is built.
  * 
  * @author nthstage
  *
@@ -35,20 +44,39 @@ import org.apache.logging.log4j.util.Strings;
 public final class FieldConfig {
     private static final Logger LOGGER = StatusLogger.getLogger();
 
+    private static final String DEFAULT_SEPARATOR = ",";
+
+    private static final PatternFormatter[] NO_FORMATTERS = new PatternFormatter[0];
+
     private final String fieldName;
-    private final PatternLayout layout;
+    private final String pattern;
+    /** The pattern, parsed once when the configuration is built. */
+    private final PatternFormatter[] formatters;
     private final String literalValue;
     private final boolean eventTimestamp;
+    private final String mapKey;
+    private final String contextKey;
+    private final FieldType type;
+    private final String separator;
+    private final ValueAccessor accessor;
     //private final boolean unicode;
     //private final boolean clob;
 
-    private FieldConfig(final String fieldName, final PatternLayout layout, final String literalValue,
-                         final boolean eventTimestamp)//, final boolean unicode, final boolean clob) 
+    private FieldConfig(final String fieldName, final String pattern, final PatternFormatter[] formatters,
+                         final String literalValue, final boolean eventTimestamp, final String mapKey,
+                         final String contextKey,
+                         final FieldType type, final String separator, final ValueAccessor accessor)//, final boolean unicode, final boolean clob) 
     {
         this.fieldName = fieldName;
-        this.layout = layout;
+        this.pattern = pattern;
+        this.formatters = formatters;
         this.literalValue = literalValue;
         this.eventTimestamp = eventTimestamp;
+        this.mapKey = mapKey;
+        this.contextKey = contextKey;
+        this.type = type;
+        this.separator = separator;
+        this.accessor = accessor;
         //this.unicode = unicode;
         //this.clob = clob;
     }
@@ -57,8 +85,31 @@ public final class FieldConfig {
         return this.fieldName;
     }
 
-    public PatternLayout getLayout() {
-        return this.layout;
+    /**
+     * @return the {@link PatternLayout} pattern this field takes its value from, or {@code null}.
+     */
+    public String getPattern() {
+        return this.pattern;
+    }
+
+    /**
+     * @return the formatters the pattern was parsed into, empty if the field has no pattern; not to be modified.
+     */
+    PatternFormatter[] getFormatters() {
+        return this.formatters;
+    }
+
+    /**
+     * Renders the value of this field into a caller-supplied buffer. Unlike {@link PatternLayout#toSerializable}
+     * this does not create a {@code String}, so the buffer can be reused for every event. The value is not yet
+     * checked against the {@link #getType() type} nor split into its values.
+     *
+     * @param event The event to render.
+     * @param buffer The buffer to append to.
+     * @return {@code false} if the event has no value for this field, for example because the map key is missing.
+     */
+    boolean format(final LogEvent event, final StringBuilder buffer) {
+        return this.accessor.format(event, buffer);
     }
 
     public String getLiteralValue() {
@@ -69,6 +120,35 @@ public final class FieldConfig {
         return this.eventTimestamp;
     }
 
+    /**
+     * @return the key of the {@link MapMessage} entry this field takes its value from, or {@code null}.
+     */
+    public String getMapKey() {
+        return this.mapKey;
+    }
+
+    /**
+     * @return the {@code ThreadContext} key this field takes its value from, or {@code null}.
+     */
+    public String getContextKey() {
+        return this.contextKey;
+    }
+
+    public FieldType getType() {
+        return this.type;
+    }
+
+    public boolean isMultiValued() {
+        return this.separator != null;
+    }
+
+    /**
+     * @return the text between the values of a multi-valued field, or {@code null} if the field has one value.
+     */
+    public String getSeparator() {
+        return this.separator;
+    }
+
    /* public boolean isUnicode() {
         return this.unicode;
     }
@@ -79,8 +159,9 @@ public final class FieldConfig {
 
     @Override
     public String toString() {
-        return "{ name=" + this.fieldName + ", layout=" + this.layout + ", literal=" + this.literalValue
-                + ", timestamp=" + this.eventTimestamp + " }";
+        return "{ name=" + this.fieldName + ", pattern=" + this.pattern + ", literal=" + this.literalValue
+                + ", timestamp=" + this.eventTimestamp + ", mapKey=" + this.mapKey + ", contextKey=" + this.contextKey
+                + ", type=" + this.type + ", separator=" + this.separator + " }";
     }
 
     /**
@@ -95,8 +176,13 @@ public final class FieldConfig {
      * @param eventTimestamp If {@code "true"}, indicates that this column is a date-time column in which the event
      *                       timestamp should be inserted. Mutually exclusive with {@code pattern!=null} and
      *                       {@code literalValue!=null}.
-     * @param unicode If {@code "true"}, indicates that the column is a Unicode String.
-     * @param clob If {@code "true"}, indicates that the column is a character LOB (CLOB).
+     * @param mapKey The key of the {@link MapMessage} entry to insert, read directly instead of through a pattern.
+     *               Events without the key, or without a map message, leave the field out.
+     * @param contextKey The {@code ThreadContext} key to insert, read directly instead of through a pattern.
+     * @param type The {@link FieldType} of the values, {@code string} by default. Values that are not valid for the
+     *             type are left out. The event timestamp is sent as milliseconds unless the type is {@code date}.
+     * @param multiValued If {@code "true"}, the value is split at {@code separator} into several values.
+     * @param separator The text between the values of a multi-valued field, {@code ","} by default.
      * @return the created column config.
      */
     @PluginFactory
@@ -105,7 +191,12 @@ public final class FieldConfig {
             @PluginAttribute("name") final String name,
             @PluginAttribute("pattern") final String pattern,
             @PluginAttribute("literal") final String literalValue,
-            @PluginAttribute("isEventTimestamp") final String eventTimestamp) {
+            @PluginAttribute("isEventTimestamp") final String eventTimestamp,
+            @PluginAttribute("mapKey") final String mapKey,
+            @PluginAttribute("contextKey") final String contextKey,
+            @PluginAttribute("type") final String type,
+            @PluginAttribute("multiValued") final String multiValued,
+            @PluginAttribute("separator") final String separator) {
         if (Strings.isEmpty(name)) {
             LOGGER.error("The column config is not valid because it does not contain a column name.");
             return null;
@@ -114,31 +205,151 @@ public final class FieldConfig {
         final boolean isPattern = Strings.isNotEmpty(pattern);
         final boolean isLiteralValue = Strings.isNotEmpty(literalValue);
         final boolean isEventTimestamp = Boolean.parseBoolean(eventTimestamp);
+        final boolean isMapKey = Strings.isNotEmpty(mapKey);
+        final boolean isContextKey = Strings.isNotEmpty(contextKey);
         //final boolean isUnicode = Booleans.parseBoolean(unicode, true);
         //final boolean isClob = Boolean.parseBoolean(clob);
 
-        if ((isPattern && isLiteralValue) || (isPattern && isEventTimestamp) || (isLiteralValue && isEventTimestamp)) {
-            LOGGER.error("The pattern, literal, and isEventTimestamp attributes are mutually exclusive.");
+        final int sources = (isPattern ? 1 : 0) + (isLiteralValue ? 1 : 0) + (isEventTimestamp ? 1 : 0)
+                + (isMapKey ? 1 : 0) + (isContextKey ? 1 : 0);
+        if (sources > 1) {
+            LOGGER.error("The pattern, literal, isEventTimestamp, mapKey and contextKey attributes are mutually exclusive.");
+            return null;
+        }
+        final FieldType fieldType = FieldType.toFieldType(type, FieldType.STRING);
+        if (fieldType == null) {
+            LOGGER.error("Field [{}] has unknown type [{}]; use one of string, int, long, double, boolean or date.", name,
+                    type);
             return null;
         }
+        String valueSeparator = null;
+        if (Boolean.parseBoolean(multiValued)) {
+            valueSeparator = Strings.isEmpty(separator) ? DEFAULT_SEPARATOR : separator;
+        }
 
         if (isEventTimestamp) {
-            return new FieldConfig(name, null, null, true);//, false, false);
+            return new FieldConfig(name, null, NO_FORMATTERS, null, true, null, null, fieldType, null,
+                    new TimestampAccessor(fieldType == FieldType.DATE));//, false, false);
         }
         if (isLiteralValue) {
-            return new FieldConfig(name, null, literalValue, false);//, false, false);
+            return new FieldConfig(name, null, NO_FORMATTERS, literalValue, false, null, null, fieldType,
+                    valueSeparator,
+                    new LiteralAccessor(literalValue));//, false, false);
+        }
+        if (isMapKey) {
+            return new FieldConfig(name, null, NO_FORMATTERS, null, false, mapKey, null, fieldType, valueSeparator,
+                    new MapKeyAccessor(mapKey));
+        }
+        if (isContextKey) {
+            return new FieldConfig(name, null, NO_FORMATTERS, null, false, null, contextKey, fieldType,
+                    valueSeparator,
+                    new ContextKeyAccessor(contextKey));
         }
         if (isPattern) {
-            final PatternLayout layout =
-                PatternLayout.newBuilder()
-                    .withPattern(pattern)
-                    .withConfiguration(config)
-                    .withAlwaysWriteExceptions(false)
-                    .build();
-            return new FieldConfig(name, layout, null, false);//, isUnicode, isClob);
+            final List<PatternFormatter> parsed =
+                PatternLayout.createPatternParser(config).parse(pattern, false, false);
+            final PatternFormatter[] formatters = parsed.toArray(new PatternFormatter[parsed.size()]);
+            return new FieldConfig(name, pattern, formatters, null, false, null, null, fieldType, valueSeparator,
+                    new PatternAccessor(formatters));//, isUnicode, isClob);
         }
 
-        LOGGER.error("To configure a column you must specify a pattern or literal or set isEventDate to true.");
+        LOGGER.error("To configure a column you must specify a pattern, literal, mapKey or contextKey or set isEventDate to true.");
         return null;
     }
+
+    /**
+     * Reads the value of a field from an event; chosen once per field when the configuration is built.
+     */
+    private interface ValueAccessor {
+        boolean format(LogEvent event, StringBuilder buffer);
+    }
+
+    private static final class PatternAccessor implements ValueAccessor {
+        private final PatternFormatter[] formatters;
+
+        PatternAccessor(final PatternFormatter[] formatters) {
+            this.formatters = formatters;
+        }
+
+        @Override
+        public boolean format(final LogEvent event, final StringBuilder buffer) {
+            for (final PatternFormatter formatter : this.formatters) {
+                formatter.format(event, buffer);
+            }
+            return true;
+        }
+    }
+
+    private static final class LiteralAccessor implements ValueAccessor {
+        private final String literalValue;
+
+        LiteralAccessor(final String literalValue) {
+            this.literalValue = literalValue;
+        }
+
+        @Override
+        public boolean format(final LogEvent event, final StringBuilder buffer) {
+            buffer.append(this.literalValue);
+            return true;
+        }
+    }
+
+    private static final class TimestampAccessor implements ValueAccessor {
+        private final boolean date;
+
+        TimestampAccessor(final boolean date) {
+            this.date = date;
+        }
+
+        @Override
+        public boolean format(final LogEvent event, final StringBuilder buffer) {
+            if (this.date) {
+                FieldType.formatDate(event.getTimeMillis(), buffer);
+            } else {
+                buffer.append(event.getTimeMillis());
+            }
+            return true;
+        }
+    }
+
+    private static final class MapKeyAccessor implements ValueAccessor {
+        private final String key;
+
+        MapKeyAccessor(final String key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean format(final LogEvent event, final StringBuilder buffer) {
+            final Message message = event.getMessage();
+            if (!(message instanceof MapMessage)) {
+                return false;
+            }
+            final String value = ((MapMessage) message).get(this.key);
+            if (value == null) {
+                return false;
+            }
+            buffer.append(value);
+            return true;
+        }
+    }
+
+    private static final class ContextKeyAccessor implements ValueAccessor {
+        private final String key;
+
+        ContextKeyAccessor(final String key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean format(final LogEvent event, final StringBuilder buffer) {
+            final Map<String, String> contextMap = event.getContextMap();
+            final String value = contextMap == null ? null : contextMap.get(this.key);
+            if (value == null) {
+                return false;
+            }
+            buffer.append(value);
+            return true;
+        }
+    }
 }
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.Locale;
+
+import org.apache.logging.log4j.util.Strings;
+
+/**
+ * The type of the values of a {@link FieldConfig}. Values are checked and normalized on the client, in place and
+ * without creating objects, so a value Solr could not parse is left out of its document instead of failing the whole
+ * update request.
+ *
+ * @author nthstage
+ *
+ */
+public enum FieldType {
+    /** Any text, sent as is. */
+    STRING,
+    /** A 32 bit integer. */
+    INT,
+    /** A 64 bit integer. */
+    LONG,
+    /** A floating point number, including {@code NaN} and {@code Infinity}. */
+    DOUBLE,
+    /** {@code true}/{@code yes}/{@code on}/{@code 1} or {@code false}/{@code no}/{@code off}/{@code 0}. */
+    BOOLEAN,
+    /**
+     * An ISO-8601 UTC date such as {@code 2017-03-01T10:15:30.000Z}. Numbers are taken as milliseconds since the epoch
+     * and converted.
+     */
+    DATE;
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * Parses a type name, case-insensitively.
+     *
+     * @param name the type name, may be {@code null}
+     * @param defaultType the type to return when {@code name} is empty
+     * @return the matching type, or {@code null} if {@code name} is not a known type.
+     */
+    public static FieldType toFieldType(final String name, final FieldType defaultType) {
+        if (Strings.isEmpty(name)) {
+            return defaultType;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks a value and rewrites it in the form Solr expects. Values of all types but {@link #STRING} are trimmed.
+     *
+     * @param value The value, rewritten in place.
+     * @return {@code false} if the value is not valid for this type and should be left out.
+     */
+    boolean normalize(final StringBuilder value) {
+        if (this == STRING) {
+            return true;
+        }
+        trim(value);
+        switch (this) {
+        case INT:
+            return isInteger(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        case LONG:
+            return isInteger(value, Long.MIN_VALUE, Long.MAX_VALUE);
+        case DOUBLE:
+            return isDouble(value);
+        case BOOLEAN:
+            return normalizeBoolean(value);
+        default:
+            return normalizeDate(value);
+        }
+    }
+
+    static void trim(final StringBuilder value) {
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        value.setLength(end);
+        int start = 0;
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        if (start > 0) {
+            value.delete(0, start);
+        }
+    }
+
+    private static boolean isInteger(final CharSequence value, final long min, final long max) {
+        final int length = value.length();
+        int i = 0;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            i++;
+        }
+        if (i == length) {
+            return false;
+        }
+        final boolean negative = value.charAt(0) == '-';
+        // accumulate negatively so Long.MIN_VALUE does not overflow
+        long result = 0;
+        for (; i < length; i++) {
+            final int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+                return false;
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative && result == Long.MIN_VALUE) {
+            return false;
+        }
+        final long number = negative ? result : -result;
+        return number >= min && number <= max;
+    }
+
+    /**
+     * Parses a value {@link #isInteger} accepted.
+     */
+    private static long parseLong(final CharSequence value) {
+        final boolean negative = value.charAt(0) == '-';
+        long result = 0;
+        for (int i = negative || value.charAt(0) == '+' ? 1 : 0; i < value.length(); i++) {
+            result = result * 10 - (value.charAt(i) - '0');
+        }
+        return negative ? result : -result;
+    }
+
+    private static boolean isDouble(final CharSequence value) {
+        final int length = value.length();
+        int i = 0;
+        if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            i++;
+        }
+        if (equals(value, i, "NaN") || equals(value, i, "Infinity")) {
+            return true;
+        }
+        int digits = 0;
+        while (i < length && isDigit(value.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < length && value.charAt(i) == '.') {
+            i++;
+            while (i < length && isDigit(value.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                i++;
+            }
+            final int exponentStart = i;
+            while (i < length && isDigit(value.charAt(i))) {
+                i++;
+            }
+            if (i == exponentStart) {
+                return false;
+            }
+        }
+        return i == length;
+    }
+
+    private static boolean normalizeBoolean(final StringBuilder value) {
+        if (equalsIgnoreCase(value, "true") || equalsIgnoreCase(value, "yes") || equalsIgnoreCase(value, "on")
+                || equalsIgnoreCase(value, "1")) {
+            value.setLength(0);
+            value.append("true");
+            return true;
+        }
+        if (equalsIgnoreCase(value, "false") || equalsIgnoreCase(value, "no") || equalsIgnoreCase(value, "off")
+                || equalsIgnoreCase(value, "0")) {
+            value.setLength(0);
+            value.append("false");
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean normalizeDate(final StringBuilder value) {
+        final int length = value.length();
+        if (isInteger(value, Long.MIN_VALUE, Long.MAX_VALUE)) {
+            final long millis = parseLong(value);
+            value.setLength(0);
+            formatDate(millis, value);
+            return true;
+        }
+        // yyyy-MM-ddTHH:mm:ss[.SSS]Z; Solr does the full check
+        return length >= 20 && value.charAt(4) == '-' && value.charAt(10) == 'T' && value.charAt(length - 1) == 'Z';
+    }
+
+    /**
+     * Appends a time as an ISO-8601 UTC date with milliseconds, without creating a {@code Calendar} or formatter.
+     *
+     * @param millis Milliseconds since the epoch.
+     * @param buffer The buffer to append to.
+     */
+    static void formatDate(final long millis, final StringBuilder buffer) {
+        long days = millis / MILLIS_PER_DAY;
+        int millisOfDay = (int) (millis % MILLIS_PER_DAY);
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += MILLIS_PER_DAY;
+        }
+        // civil-from-days, after Howard Hinnant's date algorithms
+        final long shifted = days + 719468;
+        final long era = (shifted >= 0 ? shifted : shifted - 146096) / 146097;
+        final long dayOfEra = shifted - era * 146097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long monthIndex = (5 * dayOfYear + 2) / 153;
+        final int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        final int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year >= 0 && year <= 9999) {
+            appendPadded(buffer, (int) year, 4);
+        } else {
+            buffer.append(year);
+        }
+        buffer.append('-');
+        appendPadded(buffer, month, 2);
+        buffer.append('-');
+        appendPadded(buffer, day, 2);
+        buffer.append('T');
+        appendPadded(buffer, millisOfDay / 3600000, 2);
+        millisOfDay %= 3600000;
+        buffer.append(':');
+        appendPadded(buffer, millisOfDay / 60000, 2);
+        millisOfDay %= 60000;
+        buffer.append(':');
+        appendPadded(buffer, millisOfDay / 1000, 2);
+        buffer.append('.');
+        appendPadded(buffer, millisOfDay % 1000, 3);
+        buffer.append('Z');
+    }
+
+    private static void appendPadded(final StringBuilder buffer, final int value, final int width) {
+        for (int limit = 10, i = 1; i < width; i++, limit *= 10) {
+            if (value < limit) {
+                buffer.append('0');
+            }
+        }
+        buffer.append(value);
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean equals(final CharSequence value, final int offset, final String expected) {
+        if (value.length() - offset != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (value.charAt(offset + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(final CharSequence value, final String expected) {
+        if (value.length() != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (Character.toLowerCase(value.charAt(i)) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
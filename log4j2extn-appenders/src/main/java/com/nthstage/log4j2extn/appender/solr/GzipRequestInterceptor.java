@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Compresses the bodies of update requests with gzip and marks them with {@code Content-Encoding: gzip}. Solr itself
+ * does not inflate request bodies, so the server or a proxy in front of it must do so, for example Jetty's
+ * {@code GzipHandler} with inflation enabled.
+ * <p>
+ * Must run before HttpClient's own interceptors, which derive the {@code Content-Encoding} and
+ * {@code Transfer-Encoding} headers from the entity.
+ * </p>
+ *
+ * @author nthstage
+ *
+ */
+final class GzipRequestInterceptor implements HttpRequestInterceptor {
+
+    private final long minBytes;
+
+    /**
+     * @param minBytes Bodies known to be smaller than this are sent as they are; compressing them saves little.
+     */
+    GzipRequestInterceptor(final long minBytes) {
+        this.minBytes = minBytes;
+    }
+
+    @Override
+    public void process(final HttpRequest request, final HttpContext context) {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return;
+        }
+        final HttpEntityEnclosingRequest enclosingRequest = (HttpEntityEnclosingRequest) request;
+        final HttpEntity entity = enclosingRequest.getEntity();
+        if (entity == null || entity.getContentEncoding() != null) {
+            return;
+        }
+        final long length = entity.getContentLength();
+        if (length >= 0 && length < this.minBytes) {
+            return;
+        }
+        enclosingRequest.setEntity(new GzipCompressingEntity(entity));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, such as latencies in microseconds or batch sizes. Like an HDR
+ * histogram it keeps a bucket per eighth of each power of two, so percentiles are reported within 12.5% of the
+ * recorded values in a fixed 4 KiB, whatever the range.
+ *
+ * @author nthstage
+ *
+ */
+final class Histogram {
+
+    /** Bits of a value below its leading one that select the bucket. */
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int bucketOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value that falls into {@code bucket}.
+     */
+    private static long highestValueOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    void record(final long value) {
+        final long v = Math.max(0, value);
+        this.counts.incrementAndGet(bucketOf(v));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(v);
+        long current;
+        while (v > (current = this.max.get()) && !this.max.compareAndSet(current, v)) {
+            // another thread raised the maximum; compare again
+        }
+    }
+
+    long getCount() {
+        return this.count.get();
+    }
+
+    long getMax() {
+        return this.max.get();
+    }
+
+    double getMean() {
+        final long n = this.count.get();
+        return n == 0 ? 0 : (double) this.sum.get() / n;
+    }
+
+    /**
+     * @param percentile The percentile, between {@code 0} and {@code 100}.
+     * @return an upper bound of the value below which {@code percentile} percent of the values fall.
+     */
+    long getPercentile(final double percentile) {
+        final long n = this.count.get();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+}
@@ -15,39 +15,43 @@
  */
 package com.nthstage.log4j2extn.appender.solr;
 
-import org.apache.logging.log4j.Logger;
+import java.util.Collections;
+
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.net.ssl.SslConfiguration;
-import org.apache.logging.log4j.status.StatusLogger;
 import org.apache.logging.log4j.util.Strings;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
-import org.apache.solr.client.solrj.io.SolrClientCache;
 import org.apache.solr.common.SolrException;
 
 /**
  * A {@link SolrConnectionSource} connection source that uses a {@link HttpSolrClient} to connect to the SOLR server.
+ * The client is kept open across flushes and only rebuilt after it has been invalidated. Its HTTP connections come from
+ * a pool with default settings, shared with every other source for the same server; use
+ * {@link PoolingHttpSolrConnectionSource} to tune the pool.
  * 
  * @author nthstage
  *
  */
 @Plugin(name = "HttpSlorClientSource", category = "Core", elementType = "solrConnectionSource", printObject = true)
-public final class HttpSolrConnectionSource implements SolrConnectionSource {
-    private static final Logger LOGGER = StatusLogger.getLogger();
+public final class HttpSolrConnectionSource extends AbstractSolrConnectionSource {
 
-    private final SolrClient solrClient;
+    private final String solrUrl;
     private final String description;
 
-    private HttpSolrConnectionSource(final SolrClient solrClient) {
-        this.solrClient = solrClient;
+    private HttpSolrConnectionSource(final String solrUrl, final SolrHttpClientManager httpClientManager,
+            final SolrClient solrClient) {
+        super(solrClient, httpClientManager);
+        this.solrUrl = solrUrl;
         this.description = "solrClient{ name=" + HttpSolrConnectionSource.class.getName() + ", value=" + solrClient + " }";
     }
 
-    public SolrClient getSolrClient() throws SolrException {
-        return this.solrClient;
+    @Override
+    protected SolrClient createSolrClient() throws SolrException {
+        return new HttpSolrClient.Builder(this.solrUrl).withHttpClient(this.getHttpClient()).build();
     }
 
     @Override
@@ -59,6 +63,8 @@ public final class HttpSolrConnectionSource implements SolrConnectionSource {
      * Factory method for creating a solr connection source within the plugin manager.
      *
      * @param solrServerHost The host url of the SOLR Server
+     * @param solrCore The core to index into, appended to the url.
+     * @param sslConfiguration The SSL settings for {@code https} urls.
      * @return the created Solr connection source.
      */
     @PluginFactory
@@ -76,15 +82,16 @@ public final class HttpSolrConnectionSource implements SolrConnectionSource {
         	}
         	solrUrl+=solrCore.trim();
         }
+        final SolrHttpClientManager httpClientManager = SolrHttpClientManager.newBuilder()
+                .withSolrUrls(Collections.singleton(solrUrl))
+                .withSslConfiguration(sslConfiguration)
+                .build();
         try {
-        	SolrClient solrClient = new SolrClientCache().getHttpSolrClient(solrUrl);
-            if (solrClient == null) {
-                LOGGER.error("No SolrClinet from SolrClientCache for host "+solrUrl);
-                return null;
-            }
-            
-            return new HttpSolrConnectionSource(solrClient);
+            final SolrClient solrClient = new HttpSolrClient.Builder(solrUrl)
+                    .withHttpClient(httpClientManager.getHttpClient()).build();
+            return new HttpSolrConnectionSource(solrUrl, httpClientManager, solrClient);
         } catch (final SolrException e) {
+            httpClientManager.release();
             LOGGER.error(e.getMessage(), e);
             return null;
         }
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Closer;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * A {@link SolrClient} that spreads requests over several Solr endpoints and fails over to the next endpoint when one
+ * does not answer or answers with a server error. An endpoint that fails {@code maxFailures} times in a row is
+ * ejected for {@code ejectionMillis}; afterwards a single request probes it again, and other requests leave it alone
+ * until the probe is answered. Client errors such as a bad document are not retried, since every endpoint would
+ * reject them the same way. {@link #toString()} reports the statistics of every endpoint.
+ *
+ * @author nthstage
+ *
+ */
+final class LoadBalancedSolrClient extends SolrClient {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final long serialVersionUID = 1L;
+
+    /** Weight of the latest response time in the moving average. */
+    private static final double LATENCY_SMOOTHING = 0.2;
+    /**
+     * Time over which the average of an endpoint that gets no requests decays, so one slow response does not keep it
+     * out of rotation for good.
+     */
+    private static final double LATENCY_DECAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final transient Endpoint[] endpoints;
+    private final LoadBalancingStrategy strategy;
+    private final int maxFailures;
+    private final long ejectionMillis;
+    private final AtomicInteger next = new AtomicInteger();
+
+    LoadBalancedSolrClient(final List<Endpoint> endpoints, final LoadBalancingStrategy strategy, final int maxFailures,
+            final long ejectionMillis) {
+        this.endpoints = endpoints.toArray(new Endpoint[endpoints.size()]);
+        this.strategy = strategy;
+        this.maxFailures = Math.max(1, maxFailures);
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    @Override
+    public NamedList<Object> request(@SuppressWarnings("rawtypes") final SolrRequest request, final String collection)
+            throws SolrServerException, IOException {
+        final boolean[] tried = new boolean[this.endpoints.length];
+        Exception lastFailure = null;
+        for (int attempt = 0; attempt < this.endpoints.length; attempt++) {
+            final int index = this.choose(tried, System.currentTimeMillis());
+            tried[index] = true;
+            final Endpoint endpoint = this.endpoints[index];
+            final boolean probe = endpoint.consecutiveFailures.get() >= this.maxFailures;
+            if (probe && !endpoint.probing.compareAndSet(false, true)) {
+                // another request is probing the endpoint; leave it alone until that one is answered
+                continue;
+            }
+            try {
+                endpoint.outstanding.incrementAndGet();
+                final long start = System.nanoTime();
+                try {
+                    final NamedList<Object> response = endpoint.solrClient.request(request, collection);
+                    endpoint.succeeded(System.nanoTime() - start);
+                    return response;
+                } catch (final SolrException e) {
+                    if (e.code() < 500) {
+                        // the endpoint answered; the request itself is at fault
+                        endpoint.succeeded(System.nanoTime() - start);
+                        throw e;
+                    }
+                    lastFailure = e;
+                } catch (final SolrServerException e) {
+                    lastFailure = e;
+                } catch (final IOException e) {
+                    lastFailure = e;
+                } finally {
+                    endpoint.outstanding.decrementAndGet();
+                }
+                this.failed(endpoint, lastFailure);
+            } finally {
+                // released only once the probe has re-admitted or re-ejected the endpoint
+                if (probe) {
+                    endpoint.probing.set(false);
+                }
+            }
+        }
+        throw new SolrServerException("No SOLR endpoint of " + this + " accepted the request", lastFailure);
+    }
+
+    /**
+     * Picks the endpoint for the next attempt among those not tried yet. Ejected endpoints, and endpoints another
+     * request is probing, are only picked when all others were tried, the one whose ejection ends first before the
+     * others.
+     */
+    private int choose(final boolean[] tried, final long now) {
+        final int count = this.endpoints.length;
+        final int offset = (this.next.getAndIncrement() & Integer.MAX_VALUE) % count;
+        int best = -1;
+        double bestScore = Double.MAX_VALUE;
+        int fallback = -1;
+        for (int i = 0; i < count; i++) {
+            final int index = (offset + i) % count;
+            if (tried[index]) {
+                continue;
+            }
+            final Endpoint endpoint = this.endpoints[index];
+            if (endpoint.ejectedUntilMillis > now || endpoint.probing.get()) {
+                if (fallback < 0 || endpoint.ejectedUntilMillis < this.endpoints[fallback].ejectedUntilMillis) {
+                    fallback = index;
+                }
+                continue;
+            }
+            if (this.strategy == LoadBalancingStrategy.ROUND_ROBIN) {
+                return index;
+            }
+            final double score = endpoint.score(System.nanoTime());
+            if (score < bestScore) {
+                best = index;
+                bestScore = score;
+            }
+        }
+        return best >= 0 ? best : fallback;
+    }
+
+    private void failed(final Endpoint endpoint, final Exception cause) {
+        endpoint.failures.incrementAndGet();
+        final int consecutive = endpoint.consecutiveFailures.incrementAndGet();
+        if (consecutive >= this.maxFailures) {
+            endpoint.ejectedUntilMillis = System.currentTimeMillis() + this.ejectionMillis;
+            if (consecutive == this.maxFailures) {
+                LOGGER.warn("Ejecting SOLR endpoint {} for {} ms after {} failures in a row", endpoint.url,
+                        this.ejectionMillis, consecutive, cause);
+            }
+        } else {
+            LOGGER.debug("SOLR endpoint {} failed; trying the next one", endpoint.url, cause);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final Endpoint endpoint : this.endpoints) {
+            Closer.closeSilently(endpoint.solrClient);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("LoadBalancedSolrClient{ strategy=").append(this.strategy)
+                .append(", endpoints=[");
+        for (int i = 0; i < this.endpoints.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(this.endpoints[i]);
+        }
+        return sb.append("] }").toString();
+    }
+
+    /**
+     * One Solr node with the statistics the load balancing is based on.
+     */
+    static final class Endpoint {
+        private final String url;
+        private final SolrClient solrClient;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        /** Claimed by the one request sent to the endpoint while it failed {@code maxFailures} times in a row. */
+        private final AtomicBoolean probing = new AtomicBoolean();
+        /** Moving average of the response time, {@code 0} until the first response. */
+        private volatile double averageNanos;
+        private volatile long lastResponseNanos;
+        private volatile long ejectedUntilMillis;
+
+        Endpoint(final String url, final SolrClient solrClient) {
+            this.url = url;
+            this.solrClient = solrClient;
+        }
+
+        private void succeeded(final long elapsedNanos) {
+            this.requests.incrementAndGet();
+            this.consecutiveFailures.set(0);
+            this.ejectedUntilMillis = 0;
+            final double average = this.averageNanos;
+            // racy updates only lose a sample
+            this.averageNanos = average == 0 ? elapsedNanos : average + (elapsedNanos - average) * LATENCY_SMOOTHING;
+            this.lastResponseNanos = System.nanoTime();
+        }
+
+        private double score(final long nowNanos) {
+            // endpoints without a response yet look fast, so they are probed early
+            final double average = this.averageNanos * Math.exp(-(nowNanos - this.lastResponseNanos) / LATENCY_DECAY_NANOS);
+            return (this.outstanding.get() + 1) * Math.max(average, 1);
+        }
+
+        double getAverageMillis() {
+            return this.averageNanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        boolean isEjected() {
+            return this.ejectedUntilMillis > System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return "{ url=" + this.url + ", requests=" + this.requests + ", failures=" + this.failures
+                    + ", outstanding=" + this.outstanding + ", averageMillis=" + this.getAverageMillis()
+                    + ", ejected=" + this.isEjected() + ", probing=" + this.probing + " }";
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.net.ssl.SslConfiguration;
+import org.apache.logging.log4j.util.Strings;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+
+/**
+ * A {@link SolrConnectionSource} that spreads requests over several Solr nodes holding the same core, such as the
+ * replicas of a master/slave or SolrCloud setup reached through their own urls. Requests fail over to the next node
+ * when one is down or answers with a server error, and nodes that keep failing are ejected for a while, so one slow or
+ * restarting node does not cost any batches. All nodes share one pooled HTTP client, which is also shared with every
+ * other source for the same nodes.
+ *
+ * @author nthstage
+ *
+ */
+@Plugin(name = "LoadBalancedSolrConnectionSource", category = "Core", elementType = "solrConnectionSource", printObject = true)
+public final class LoadBalancedSolrConnectionSource extends AbstractSolrConnectionSource {
+
+    private static final int DEFAULT_MAX_FAILURES = 3;
+    private static final int DEFAULT_EJECTION_MILLIS = 30000;
+
+    private final List<String> solrUrls;
+    private final LoadBalancingStrategy strategy;
+    private final int maxFailures;
+    private final long ejectionMillis;
+    private final String description;
+
+    private LoadBalancedSolrConnectionSource(final List<String> solrUrls, final LoadBalancingStrategy strategy,
+            final int maxFailures, final long ejectionMillis, final SolrHttpClientManager httpClientManager) {
+        super(null, httpClientManager);
+        this.solrUrls = solrUrls;
+        this.strategy = strategy;
+        this.maxFailures = maxFailures;
+        this.ejectionMillis = ejectionMillis;
+        this.description = "solrClient{ name=" + LoadBalancedSolrConnectionSource.class.getName() + ", urls="
+                + solrUrls + ", strategy=" + strategy + " }";
+    }
+
+    @Override
+    protected SolrClient createSolrClient() {
+        final List<LoadBalancedSolrClient.Endpoint> endpoints = new ArrayList<>(this.solrUrls.size());
+        for (final String solrUrl : this.solrUrls) {
+            endpoints.add(new LoadBalancedSolrClient.Endpoint(solrUrl,
+                    new HttpSolrClient.Builder(solrUrl).withHttpClient(this.getHttpClient()).build()));
+        }
+        return new LoadBalancedSolrClient(endpoints, this.strategy, this.maxFailures, this.ejectionMillis);
+    }
+
+    @Override
+    public void invalidateSolrClient(final SolrClient solrClient) {
+        // the client has already failed over and ejected the broken nodes; keep it and its statistics
+        this.releaseSolrClient(solrClient);
+    }
+
+    @Override
+    public String toString() {
+        return this.description;
+    }
+
+    /**
+     * Factory method for creating a load balancing solr connection source within the plugin manager.
+     *
+     * @param solrServerHosts The comma separated urls of the SOLR servers.
+     * @param solrCore The core to index into, appended to every url.
+     * @param strategy {@code round_robin} or {@code least_outstanding} (the default).
+     * @param maxFailures The number of failures in a row after which a node is ejected, 3 by default.
+     * @param ejectionMillis How long an ejected node is left alone, 30000 by default.
+     * @param sslConfiguration The SSL settings for {@code https} urls.
+     * @return the created Solr connection source.
+     */
+    @PluginFactory
+    public static SolrConnectionSource createConnectionSource(@PluginAttribute("solrServerHosts") final String solrServerHosts,
+            @PluginAttribute("solrCore") final String solrCore,
+            @PluginAttribute("strategy") final String strategy,
+            @PluginAttribute("maxFailures") final String maxFailures,
+            @PluginAttribute("ejectionMillis") final String ejectionMillis,
+            @PluginElement("sslConfiguration") final SslConfiguration sslConfiguration) {
+        if (Strings.isEmpty(solrServerHosts)) {
+            LOGGER.error("No Solr Server host urls provided.");
+            return null;
+        }
+        final List<String> solrUrls = new ArrayList<>();
+        for (final String host : solrServerHosts.split(",")) {
+            String solrUrl = host.trim();
+            if (solrUrl.isEmpty()) {
+                continue;
+            }
+            if (Strings.isNotEmpty(solrCore)) {
+                if (!solrUrl.endsWith("/")) {
+                    solrUrl += "/";
+                }
+                solrUrl += solrCore.trim();
+            }
+            solrUrls.add(solrUrl);
+        }
+        if (solrUrls.isEmpty()) {
+            LOGGER.error("No Solr Server host url in [{}].", solrServerHosts);
+            return null;
+        }
+        final LoadBalancingStrategy loadBalancingStrategy =
+                LoadBalancingStrategy.toStrategy(strategy, LoadBalancingStrategy.LEAST_OUTSTANDING);
+        if (loadBalancingStrategy == null) {
+            LOGGER.error("Unknown load balancing strategy [{}]; use round_robin or least_outstanding.", strategy);
+            return null;
+        }
+        final SolrHttpClientManager httpClientManager = SolrHttpClientManager.newBuilder()
+                .withSolrUrls(solrUrls)
+                .withSslConfiguration(sslConfiguration)
+                .build();
+        return new LoadBalancedSolrConnectionSource(solrUrls, loadBalancingStrategy,
+                AbstractAppender.parseInt(maxFailures, DEFAULT_MAX_FAILURES),
+                AbstractAppender.parseInt(ejectionMillis, DEFAULT_EJECTION_MILLIS), httpClientManager);
+    }
+}
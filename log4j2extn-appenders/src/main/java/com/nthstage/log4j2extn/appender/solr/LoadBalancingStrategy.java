@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.Locale;
+
+import org.apache.logging.log4j.util.Strings;
+
+/**
+ * How a {@link LoadBalancedSolrConnectionSource} picks the endpoint for a request. Ejected endpoints are skipped by
+ * every strategy.
+ *
+ * @author nthstage
+ *
+ */
+public enum LoadBalancingStrategy {
+    /** Endpoints take turns. */
+    ROUND_ROBIN,
+    /**
+     * The endpoint with the lowest score wins, where the score is the number of requests in flight on it, plus one,
+     * times its average response time. Slow endpoints therefore get fewer requests.
+     */
+    LEAST_OUTSTANDING;
+
+    /**
+     * Parses a strategy name, case-insensitively.
+     *
+     * @param name the strategy name, may be {@code null}
+     * @param defaultStrategy the strategy to return when {@code name} is empty
+     * @return the matching strategy, or {@code null} if {@code name} is not a known strategy.
+     */
+    public static LoadBalancingStrategy toStrategy(final String name, final LoadBalancingStrategy defaultStrategy) {
+        if (Strings.isEmpty(name)) {
+            return defaultStrategy;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
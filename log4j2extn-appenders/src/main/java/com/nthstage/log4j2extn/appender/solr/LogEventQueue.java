@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+/**
+ * The bounded hand-off queue between logging threads and indexer threads. Offering and polling are lock-free: every
+ * slot of a ring carries a sequence number that tells producers and consumers whose turn it is, after Dmitry Vyukov's
+ * bounded MPMC queue, so producers only contend on one compare-and-set instead of a queue-wide lock. The lock below is
+ * taken only to park a thread that found the queue empty or full, and by the thread that wakes it.
+ *
+ * @author nthstage
+ *
+ */
+final class LogEventQueue {
+
+    /** The longest a parked producer sleeps before it looks for a free slot again, in case a wake-up was missed. */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int capacity;
+    private final AtomicReferenceArray<LogEvent> events;
+    /** Slot {@code i} is free for position {@code p} when it holds {@code p}, and full when it holds {@code p + 1}. */
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = this.lock.newCondition();
+    private final Condition notFull = this.lock.newCondition();
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+
+    LogEventQueue(final int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.events = new AtomicReferenceArray<>(this.capacity);
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return this.capacity;
+    }
+
+    int size() {
+        final long size = this.tail.get() - this.head.get();
+        return (int) Math.max(0, Math.min(this.capacity, size));
+    }
+
+    boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * @return {@code false} if the queue is full.
+     */
+    boolean offer(final LogEvent event) {
+        long position = this.tail.get();
+        while (true) {
+            final int index = (int) (position % this.capacity);
+            final long difference = this.sequences.get(index) - position;
+            if (difference == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.events.lazySet(index, event);
+                    this.sequences.set(index, position + 1);
+                    break;
+                }
+                position = this.tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = this.tail.get();
+            }
+        }
+        // the increment of waitingConsumers before a consumer looks at the queue pairs with this read
+        if (this.waitingConsumers.get() > 0) {
+            this.signal(this.notEmpty);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an event, waiting while the queue is full.
+     *
+     * @throws InterruptedException if interrupted while waiting; the event is not added.
+     */
+    void put(final LogEvent event) throws InterruptedException {
+        while (!this.offer(event)) {
+            this.lock.lockInterruptibly();
+            try {
+                this.waitingProducers.incrementAndGet();
+                try {
+                    if (this.size() >= this.capacity) {
+                        this.notFull.awaitNanos(MAX_PARK_NANOS);
+                    }
+                } finally {
+                    this.waitingProducers.decrementAndGet();
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest event, or {@code null} if the queue is empty.
+     */
+    LogEvent poll() {
+        final LogEvent event = this.take();
+        if (event != null && this.waitingProducers.get() > 0) {
+            this.signal(this.notFull);
+        }
+        return event;
+    }
+
+    /**
+     * @return the oldest event, waiting up to {@code timeout} for one, or {@code null} if none arrived.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    LogEvent poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        LogEvent event = this.poll();
+        if (event != null) {
+            return event;
+        }
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            this.waitingConsumers.incrementAndGet();
+            try {
+                while ((event = this.poll()) == null) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = this.notEmpty.awaitNanos(nanos);
+                }
+                return event;
+            } finally {
+                this.waitingConsumers.decrementAndGet();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Moves up to {@code maxEvents} events, oldest first, into {@code target} without waiting.
+     *
+     * @return the number of events moved.
+     */
+    int drainTo(final Collection<? super LogEvent> target, final int maxEvents) {
+        int count = 0;
+        LogEvent event;
+        while (count < maxEvents && (event = this.take()) != null) {
+            target.add(event);
+            count++;
+        }
+        if (count > 0 && this.waitingProducers.get() > 0) {
+            this.signalAll(this.notFull);
+        }
+        return count;
+    }
+
+    private LogEvent take() {
+        long position = this.head.get();
+        while (true) {
+            final int index = (int) (position % this.capacity);
+            final long difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (this.head.compareAndSet(position, position + 1)) {
+                    final LogEvent event = this.events.get(index);
+                    this.events.lazySet(index, null);
+                    this.sequences.set(index, position + this.capacity);
+                    return event;
+                }
+                position = this.head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = this.head.get();
+            }
+        }
+    }
+
+    private void signal(final Condition condition) {
+        this.lock.lock();
+        try {
+            condition.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void signalAll(final Condition condition) {
+        this.lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.pattern.ClassNamePatternConverter;
+import org.apache.logging.log4j.core.pattern.FileLocationPatternConverter;
+import org.apache.logging.log4j.core.pattern.FullLocationPatternConverter;
+import org.apache.logging.log4j.core.pattern.LineLocationPatternConverter;
+import org.apache.logging.log4j.core.pattern.LogEventPatternConverter;
+import org.apache.logging.log4j.core.pattern.MethodLocationPatternConverter;
+import org.apache.logging.log4j.core.pattern.PatternFormatter;
+
+/**
+ * Takes immutable copies of log events before they are buffered or queued. Log4j may reuse and overwrite event objects
+ * (garbage-free logging, {@code RingBufferLogEvent}) once the appender returns, so a buffered event must not be the
+ * caller's instance. The copy is Log4j's own memento, as the {@code Async} appender takes: it shares the message
+ * unless the message is reusable, and keeps the whole event, so the dead-letter appender receives it intact. The
+ * fields themselves are rendered later by the flushing thread.
+ * <p>
+ * The source location is only captured if a field pattern references it, since walking the stack costs more than
+ * the rest of the copy.
+ * </p>
+ *
+ * @author nthstage
+ *
+ */
+final class LogEventSnapshotter {
+    private boolean location;
+
+    LogEventSnapshotter(final FieldConfig[] fieldConfigs) {
+        // the formatters the fields parsed their patterns into when the configuration was built
+        for (final FieldConfig fieldConfig : fieldConfigs) {
+            for (final PatternFormatter formatter : fieldConfig.getFormatters()) {
+                this.inspect(formatter.getConverter());
+            }
+        }
+    }
+
+    private void inspect(final LogEventPatternConverter converter) {
+        if (converter instanceof ClassNamePatternConverter || converter instanceof FileLocationPatternConverter
+                || converter instanceof FullLocationPatternConverter
+                || converter instanceof LineLocationPatternConverter
+                || converter instanceof MethodLocationPatternConverter) {
+            this.location = true;
+        }
+    }
+
+    /**
+     * Copies an event.
+     *
+     * @param event The caller's event, which may be reused by Log4j after this call.
+     * @return an immutable event that can be rendered on another thread.
+     */
+    LogEvent snapshot(final LogEvent event) {
+        return Log4jLogEvent.createMemento(event, this.location && event.isIncludeLocation());
+    }
+}
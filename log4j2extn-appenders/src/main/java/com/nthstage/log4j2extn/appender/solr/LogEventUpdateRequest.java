@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ContentStreamBase;
+
+/**
+ * An update request whose body is a run of documents from an {@link UpdatePayload}, posted to {@code /update} as is.
+ *
+ * @author nthstage
+ *
+ */
+final class LogEventUpdateRequest extends AbstractUpdateRequest {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient UpdatePayload payload;
+    private final int fromDocument;
+    private final int toDocument;
+
+    /**
+     * @param payload The encoded documents; must not change until the request has been sent.
+     * @param fromDocument The first document to send, inclusive.
+     * @param toDocument The last document to send, exclusive.
+     * @param commitWithinMillis The {@code commitWithin} time for the documents, or {@code -1} for none.
+     */
+    LogEventUpdateRequest(final UpdatePayload payload, final int fromDocument, final int toDocument,
+            final int commitWithinMillis) {
+        super(METHOD.POST, "/update");
+        this.payload = payload;
+        this.fromDocument = fromDocument;
+        this.toDocument = toDocument;
+        if (commitWithinMillis > 0) {
+            this.setParam(UpdateParams.COMMIT_WITHIN, Integer.toString(commitWithinMillis));
+        }
+    }
+
+    @Override
+    public Collection<ContentStream> getContentStreams() {
+        return Collections.<ContentStream>singletonList(new PayloadContentStream());
+    }
+
+    private final class PayloadContentStream extends ContentStreamBase {
+
+        PayloadContentStream() {
+            this.contentType = UpdatePayload.CONTENT_TYPE;
+            this.size = payload.getStreamSize(fromDocument, toDocument);
+        }
+
+        @Override
+        public InputStream getStream() {
+            return payload.openStream(fromDocument, toDocument);
+        }
+    }
+}
@@ -15,25 +15,15 @@
  */
 package com.nthstage.log4j2extn.appender.solr;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.SSLSocketFactory;
+import java.util.Collections;
 
-import org.apache.http.client.HttpClient;
-import org.apache.http.config.Registry;
-import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.socket.PlainConnectionSocketFactory;
-import org.apache.http.conn.ssl.DefaultHostnameVerifier;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.net.ssl.SslConfiguration;
-import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.core.util.Booleans;
 import org.apache.logging.log4j.util.Strings;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
@@ -41,24 +31,37 @@ import org.apache.solr.common.SolrException;
 
 /**
  * A {@link SolrConnectionSource} connection source that uses a {@link HttpSolrClient} to connect to the SOLR server.
+ * The pooled HTTP client is shared with every other source for the same server and settings, and survives
+ * reconfigurations, so keep-alive connections are reused across flushes and appenders; invalidating the Solr client
+ * only evicts idle and expired connections from the pool. The pool size, timeouts, connection eviction and gzip
+ * compression of update requests can be tuned with plugin attributes.
  * 
  * @author nthstage
  *
  */
 @Plugin(name = "PoolingHttpSolrConnectionSource", category = "Core", elementType = "solrConnectionSource", printObject = true)
-public final class PoolingHttpSolrConnectionSource implements SolrConnectionSource {
-    private static final Logger LOGGER = StatusLogger.getLogger();
+public final class PoolingHttpSolrConnectionSource extends AbstractSolrConnectionSource {
 
-    private final SolrClient solrClient;
+    private final String solrUrl;
     private final String description;
 
-    private PoolingHttpSolrConnectionSource(final SolrClient solrClient) {
-        this.solrClient = solrClient;
+    private PoolingHttpSolrConnectionSource(final String solrUrl, final SolrHttpClientManager httpClientManager,
+            final SolrClient solrClient) {
+        super(solrClient, httpClientManager);
+        this.solrUrl = solrUrl;
         this.description = "solrClient{ name=" + HttpSolrConnectionSource.class.getName() + ", value=" + solrClient + " }";
     }
 
-    public SolrClient getSolrClient() throws SolrException {
-        return this.solrClient;
+    @Override
+    protected SolrClient createSolrClient() throws SolrException {
+        return new HttpSolrClient.Builder(this.solrUrl).withHttpClient(this.getHttpClient()).build();
+    }
+
+    @Override
+    protected void closeSolrClient(final SolrClient solrClient) {
+        // the HttpSolrClient does not own the pooled HTTP client; just drop connections that may be broken
+        super.closeSolrClient(solrClient);
+        this.getHttpClientManager().closeIdleConnections();
     }
 
     @Override
@@ -67,49 +70,96 @@ public final class PoolingHttpSolrConnectionSource implements SolrConnectionSour
     }
 
     /**
-     * Factory method for creating a solr connection source within the plugin manager.
+     * Factory method for creating a solr connection source within the plugin manager. Numeric attributes that are
+     * left out take the defaults below; a value of {@code 0} disables the timeout or eviction it stands for.
      *
      * @param solrServerHost The host url of the SOLR Server
+     * @param solrCore The core to index into, appended to the url.
+     * @param maxConnections The maximum number of pooled connections, 20 by default.
+     * @param maxConnectionsPerRoute The maximum number of pooled connections to one host, by default
+     *                               {@code maxConnections}; the source only talks to one host.
+     * @param connectTimeoutMillis How long to wait for a TCP connection, 15000 by default.
+     * @param socketTimeoutMillis How long to wait for data on an open connection, 60000 by default.
+     * @param connectionRequestTimeoutMillis How long to wait for a free connection from the pool, 15000 by default.
+     * @param idleConnectionTimeoutMillis Connections idle for this long are closed by a background thread, 30000 by
+     *                                    default; keep it below the keep-alive timeout of the server or any load
+     *                                    balancer in between.
+     * @param connectionTimeToLiveMillis Connections are closed once they are this old, even if in use since, so
+     *                                   that DNS changes are picked up; 0 (forever) by default.
+     * @param validateAfterInactivityMillis Pooled connections idle for this long are checked for a closed socket
+     *                                      before reuse, 2000 by default.
+     * @param shareAuthenticatedConnections If {@code "true"} (the default), pooled connections authenticated with a
+     *                                      client certificate are leased to any request, instead of only to requests
+     *                                      of the user token that opened them. This does not affect TLS session
+     *                                      resumption; all connections of the pool share one SSL context.
+     * @param compressRequests If {@code "true"}, update request bodies of at least {@code compressMinBytes} are sent
+     *                         gzip-compressed. Log batches shrink several fold, but the server or a proxy in front
+     *                         of it must inflate {@code Content-Encoding: gzip} requests; Solr alone does not.
+     *                         Defaults to {@code "false"}.
+     * @param compressMinBytes Smaller request bodies are sent uncompressed, 1024 by default.
+     * @param sslConfiguration The SSL settings for {@code https} urls.
      * @return the created Solr connection source.
      */
     @PluginFactory
     public static SolrConnectionSource createConnectionSource(@PluginAttribute("solrServerHost") final String solrServerHost,
-    		@PluginAttribute("solrCore") final String solrCore, 
-    		@PluginElement ("sslConfiguration") final SslConfiguration sslConfiguration) {
+            @PluginAttribute("solrCore") final String solrCore,
+            @PluginAttribute("maxConnections") final String maxConnections,
+            @PluginAttribute("maxConnectionsPerRoute") final String maxConnectionsPerRoute,
+            @PluginAttribute("connectTimeoutMillis") final String connectTimeoutMillis,
+            @PluginAttribute("socketTimeoutMillis") final String socketTimeoutMillis,
+            @PluginAttribute("connectionRequestTimeoutMillis") final String connectionRequestTimeoutMillis,
+            @PluginAttribute("idleConnectionTimeoutMillis") final String idleConnectionTimeoutMillis,
+            @PluginAttribute("connectionTimeToLiveMillis") final String connectionTimeToLiveMillis,
+            @PluginAttribute("validateAfterInactivityMillis") final String validateAfterInactivityMillis,
+            @PluginAttribute("shareAuthenticatedConnections") final String shareAuthenticatedConnections,
+            @PluginAttribute("compressRequests") final String compressRequests,
+            @PluginAttribute("compressMinBytes") final String compressMinBytes,
+            @PluginElement("sslConfiguration") final SslConfiguration sslConfiguration) {
         if (Strings.isEmpty(solrServerHost)) {
             LOGGER.error("No Solr Server host url provided.");
             return null;
         }
         String solrUrl = solrServerHost.trim();
-        if(Strings.isNotEmpty(solrCore)) {
-        	if(!solrUrl.endsWith("/")) {
-        		solrUrl+="/";
-        	}
-        	solrUrl+=solrCore.trim();
+        if (Strings.isNotEmpty(solrCore)) {
+            if (!solrUrl.endsWith("/")) {
+                solrUrl += "/";
+            }
+            solrUrl += solrCore.trim();
+        }
+        final int maxTotal = AbstractAppender.parseInt(maxConnections, SolrHttpClientManager.DEFAULT_MAX_CONNECTIONS);
+        final int maxPerRoute = AbstractAppender.parseInt(maxConnectionsPerRoute, maxTotal);
+        if (maxTotal <= 0 || maxPerRoute <= 0) {
+            LOGGER.error("maxConnections and maxConnectionsPerRoute must be positive, not {} and {}.", maxTotal,
+                    maxPerRoute);
+            return null;
         }
+        final SolrHttpClientManager httpClientManager = SolrHttpClientManager.newBuilder()
+                .withSolrUrls(Collections.singleton(solrUrl))
+                .withMaxConnections(maxTotal)
+                .withMaxConnectionsPerRoute(maxPerRoute)
+                .withConnectTimeoutMillis(AbstractAppender.parseInt(connectTimeoutMillis,
+                        SolrHttpClientManager.DEFAULT_CONNECT_TIMEOUT_MILLIS))
+                .withSocketTimeoutMillis(AbstractAppender.parseInt(socketTimeoutMillis,
+                        SolrHttpClientManager.DEFAULT_SOCKET_TIMEOUT_MILLIS))
+                .withConnectionRequestTimeoutMillis(AbstractAppender.parseInt(connectionRequestTimeoutMillis,
+                        SolrHttpClientManager.DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS))
+                .withIdleConnectionTimeoutMillis(SolrAppender.parseLong(idleConnectionTimeoutMillis,
+                        SolrHttpClientManager.DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS))
+                .withConnectionTimeToLiveMillis(SolrAppender.parseLong(connectionTimeToLiveMillis, 0))
+                .withValidateAfterInactivityMillis(AbstractAppender.parseInt(validateAfterInactivityMillis,
+                        SolrHttpClientManager.DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS))
+                .withShareAuthenticatedConnections(Booleans.parseBoolean(shareAuthenticatedConnections, true))
+                .withCompressMinBytes(Booleans.parseBoolean(compressRequests, false)
+                        ? SolrAppender.parseLong(compressMinBytes, SolrHttpClientManager.DEFAULT_COMPRESS_MIN_BYTES)
+                        : -1)
+                .withSslConfiguration(sslConfiguration)
+                .build();
         try {
-        	RegistryBuilder<ConnectionSocketFactory> registryBuilder = RegistryBuilder.<ConnectionSocketFactory>create();
-        	registryBuilder.register("http", new PlainConnectionSocketFactory());
-        	if(sslConfiguration!=null) {
-        		SSLSocketFactory sslSocketFactory = sslConfiguration.getSslSocketFactory();
-        		HostnameVerifier hostnameVerifier = new DefaultHostnameVerifier();
-        		SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslSocketFactory, hostnameVerifier);
-        		registryBuilder.register("https", sslsf);
-        	}
-        	
-        	Registry<ConnectionSocketFactory> registry = registryBuilder.build();
-        	PoolingHttpClientConnectionManager httpConnectionManager = new PoolingHttpClientConnectionManager(registry);
-        	
-        	HttpClient httpClient = HttpClientBuilder.create().setConnectionManager(httpConnectionManager).build();
-        	
-            final SolrClient solrClient = new HttpSolrClient.Builder(solrUrl).withHttpClient(httpClient).build();
-            if (solrClient == null) {
-                LOGGER.error("No SolrClinet from SolrClientCache for host "+solrUrl);
-                return null;
-            }
-            
-            return new PoolingHttpSolrConnectionSource(solrClient);
+            final SolrClient solrClient = new HttpSolrClient.Builder(solrUrl)
+                    .withHttpClient(httpClientManager.getHttpClient()).build();
+            return new PoolingHttpSolrConnectionSource(solrUrl, httpClientManager, solrClient);
         } catch (final SolrException e) {
+            httpClientManager.release();
             LOGGER.error(e.getMessage(), e);
             return null;
         }
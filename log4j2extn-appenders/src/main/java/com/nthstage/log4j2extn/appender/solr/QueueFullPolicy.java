@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.Locale;
+
+import org.apache.logging.log4j.util.Strings;
+
+/**
+ * What an asynchronous {@link SolrClientManager} does with a log event when its hand-off queue is full.
+ *
+ * @author nthstage
+ *
+ */
+public enum QueueFullPolicy {
+    /** The logging thread waits until the indexer threads have made room in the queue. */
+    BLOCK,
+    /** The oldest queued event is discarded to make room for the new one. */
+    DROP_OLDEST,
+    /** The new event is discarded. */
+    DROP_NEWEST,
+    /** The new event is indexed synchronously on the logging thread, as if the appender were not asynchronous. */
+    SYNCHRONOUS;
+
+    /**
+     * Parses a policy name, case-insensitively.
+     *
+     * @param name the policy name, may be {@code null}
+     * @param defaultPolicy the policy to return when {@code name} is empty
+     * @return the matching policy, or {@code null} if {@code name} is not a known policy.
+     */
+    public static QueueFullPolicy toPolicy(final String name, final QueueFullPolicy defaultPolicy) {
+        if (Strings.isEmpty(name)) {
+            return defaultPolicy;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.Strings;
+import org.apache.solr.common.SolrException;
+
+/**
+ * Decides how {@link SolrClientManager} reacts to failed update requests. The policy is configured with the
+ * {@code retryPolicy} attribute of the SOLR appender, a comma separated list of:
+ * <ul>
+ * <li>{@code retries=<n>} - retry a failed request up to {@code n} times (default {@code 0}).</li>
+ * <li>{@code backoff=<ms>} - the wait before the first retry (default {@code 100}); it doubles with every retry.</li>
+ * <li>{@code maxBackoff=<ms>} - the longest wait between two retries (default {@code 5000}).</li>
+ * <li>{@code breakAfter=<n>} - open the circuit breaker after {@code n} requests in a row failed for good (default
+ * {@code 0}, no breaker). While it is open, requests fail at once instead of waiting for a dead server.</li>
+ * <li>{@code breakFor=<ms>} - how long the breaker stays open before one request may try again (default
+ * {@code 30000}).</li>
+ * </ul>
+ * The wait before a retry is chosen at random between zero and the current backoff, so clients that failed together
+ * do not retry together. Only failures that may pass are retried: I/O errors, timeouts and server side errors such as
+ * {@code 503}. Requests Solr rejects, for example for a schema error, fail at once. For example
+ * {@code retryPolicy="retries=3,backoff=200,breakAfter=5,breakFor=10000"}.
+ *
+ * @author nthstage
+ *
+ */
+public final class RetryPolicy {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final long DEFAULT_BACKOFF_MILLIS = 100;
+    private static final long DEFAULT_MAX_BACKOFF_MILLIS = 5000;
+    private static final long DEFAULT_BREAK_MILLIS = 30000;
+
+    /** The legacy behaviour: no retries and no circuit breaker. */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(0, DEFAULT_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS, 0,
+            DEFAULT_BREAK_MILLIS);
+
+    private final int retries;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final int breakAfter;
+    private final long breakMillis;
+
+    private RetryPolicy(final int retries, final long backoffMillis, final long maxBackoffMillis, final int breakAfter,
+            final long breakMillis) {
+        this.retries = retries;
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.breakAfter = breakAfter;
+        this.breakMillis = breakMillis;
+    }
+
+    public int getRetries() {
+        return this.retries;
+    }
+
+    /**
+     * @return the number of consecutive failed requests that open the circuit breaker, or {@code 0} if there is no
+     *         breaker.
+     */
+    public int getBreakAfter() {
+        return this.breakAfter;
+    }
+
+    public long getBreakMillis() {
+        return this.breakMillis;
+    }
+
+    /**
+     * Chooses the wait before a retry: a random time up to the exponential backoff for the attempt.
+     *
+     * @param retry The retry about to be made, starting with {@code 0}.
+     * @return the wait in milliseconds.
+     */
+    public long getBackoffMillis(final int retry) {
+        final long ceiling = Math.min(this.maxBackoffMillis, this.backoffMillis << Math.min(retry, 30));
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Indicates whether a request that failed this way may succeed if sent again.
+     *
+     * @param failure The failure, or an exception wrapping it.
+     * @return {@code false} if Solr rejected the request itself, {@code true} for I/O errors, timeouts and server
+     *         errors.
+     */
+    public static boolean isRetriable(final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SolrException) {
+                // remote errors carry the HTTP status; client-side ones, such as a lost ZooKeeper connection, are 500
+                final int code = ((SolrException) cause).code();
+                return code >= 500 || code == 408 || code == 429 || code < 400;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether Solr may have rejected a request because of one of its documents, such as a value that does
+     * not match the schema, so that sending the documents on their own would find the culprit. Other rejections, such
+     * as a missing collection or a denied login, fail every request alike.
+     *
+     * @param failure The failure, or an exception wrapping it.
+     * @return {@code true} for a {@code 400} or {@code 413} answer.
+     */
+    public static boolean isDocumentRejection(final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SolrException) {
+                final int code = ((SolrException) cause).code();
+                return code == 400 || code == 413;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "retries=" + this.retries + ",backoff=" + this.backoffMillis + ",maxBackoff=" + this.maxBackoffMillis
+                + ",breakAfter=" + this.breakAfter + ",breakFor=" + this.breakMillis;
+    }
+
+    /**
+     * Parses the {@code retryPolicy} attribute.
+     *
+     * @param text The attribute value, may be empty.
+     * @return the policy, or {@code null} if the value is not valid.
+     */
+    public static RetryPolicy toRetryPolicy(final String text) {
+        if (Strings.isEmpty(text)) {
+            return DEFAULT;
+        }
+        int retries = DEFAULT.retries;
+        long backoffMillis = DEFAULT.backoffMillis;
+        long maxBackoffMillis = DEFAULT.maxBackoffMillis;
+        int breakAfter = DEFAULT.breakAfter;
+        long breakMillis = DEFAULT.breakMillis;
+        for (final String token : text.split(",")) {
+            final String trimmed = token.trim();
+            final int eq = trimmed.indexOf('=');
+            if (eq < 0) {
+                LOGGER.error("Retry policy [{}] needs a value, e.g. retries=3, in [{}].", trimmed, text);
+                return null;
+            }
+            final String key = trimmed.substring(0, eq).trim().toLowerCase(Locale.ENGLISH);
+            long value;
+            try {
+                value = Long.parseLong(trimmed.substring(eq + 1).trim());
+            } catch (final NumberFormatException e) {
+                value = -1;
+            }
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                LOGGER.error("Retry policy [{}] needs a number of at least 0 in [{}].", trimmed, text);
+                return null;
+            }
+            if (key.equals("retries")) {
+                retries = (int) value;
+            } else if (key.equals("backoff")) {
+                backoffMillis = value;
+            } else if (key.equals("maxbackoff")) {
+                maxBackoffMillis = value;
+            } else if (key.equals("breakafter")) {
+                breakAfter = (int) value;
+            } else if (key.equals("breakfor")) {
+                breakMillis = value;
+            } else {
+                LOGGER.error("Unknown retry policy [{}] in [{}].", trimmed, text);
+                return null;
+            }
+        }
+        return new RetryPolicy(retries, backoffMillis, Math.max(backoffMillis, maxBackoffMillis), breakAfter,
+                breakMillis);
+    }
+}
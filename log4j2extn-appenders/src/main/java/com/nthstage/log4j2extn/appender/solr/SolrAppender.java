@@ -15,20 +15,21 @@
  */
 package com.nthstage.log4j2extn.appender.solr;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
 import org.apache.logging.log4j.LoggingException;
+import org.apache.logging.log4j.core.Appender;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
 import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.config.AppenderControl;
+import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.util.Booleans;
+import org.apache.logging.log4j.util.Strings;
 
 /**
  * This Appender writes logging events to a relational database using SOLR Client API. It takes a list of
@@ -45,15 +46,23 @@ import org.apache.logging.log4j.core.util.Booleans;
 @Plugin(name = "SOLR", category = "Core", elementType = "appender", printObject = true)
 public final class SolrAppender extends AbstractAppender  {
 
-	private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private final Lock readLock = lock.readLock();
-    
     private final String description;
-    private SolrClientManager manager;
+    /**
+     * Never replaced: a reconfiguration starts a new appender with a new manager and stops this one, so
+     * {@link #append} needs no lock and logging threads only meet in the manager's lock-free buffer or queue.
+     */
+    private final SolrClientManager manager;
+    private final String deadLetterAppenderName;
+    private final Configuration configuration;
+    private SolrAppenderAdmin admin;
+
     private SolrAppender(final String name, final Filter filter, final boolean ignoreExceptions,
-                         final SolrClientManager manager) {
+                         final SolrClientManager manager, final String deadLetterAppenderName,
+                         final Configuration configuration) {
     	super(name, filter, null, ignoreExceptions);
     	this.manager = manager;
+        this.deadLetterAppenderName = deadLetterAppenderName;
+        this.configuration = configuration;
         this.description = this.getName() + "{ manager=" + manager + " }";
     }
 
@@ -65,7 +74,6 @@ public final class SolrAppender extends AbstractAppender  {
 
     @Override
     public final void append(final LogEvent event) {
-    	this.readLock.lock();
         try {
             this.manager.write(event);
         } catch (final LoggingException e) {
@@ -76,8 +84,6 @@ public final class SolrAppender extends AbstractAppender  {
             LOGGER.error("Unable to write to SOLR [{}] for appender [{}].", this.manager.getName(),
                     this.getName(), e);
             throw new AppenderLoggingException("Unable to write to SOLR in appender: " + e.getMessage(), e);
-        } finally {
-            this.readLock.unlock();
         }
     }
 
@@ -89,12 +95,35 @@ public final class SolrAppender extends AbstractAppender  {
         super.start();
         if (this.manager!= null) {
             this.manager.startup();
+            this.startDeadLetterAppender();
+            this.admin = SolrAppenderAdmin.register(this.configuration, this.getName(), this.manager);
         }
     }
 
+    /**
+     * Looks up the dead-letter appender once all appenders of the configuration exist.
+     */
+    private void startDeadLetterAppender() {
+        if (this.deadLetterAppenderName == null || this.deadLetterAppenderName.isEmpty()) {
+            return;
+        }
+        final Appender appender = this.configuration == null ? null
+                : this.configuration.<Appender>getAppender(this.deadLetterAppenderName);
+        if (appender == null) {
+            LOGGER.error("Unable to locate dead-letter appender [{}] for appender [{}]; rejected events are dropped.",
+                    this.deadLetterAppenderName, this.getName());
+            return;
+        }
+        this.manager.setDeadLetterAppender(new AppenderControl(appender, null, null));
+    }
+
     @Override
     public final void stop() {
         super.stop();
+        if (this.admin != null) {
+            this.admin.unregister();
+            this.admin = null;
+        }
         if (this.manager != null) {
             this.manager.release();
         }
@@ -112,6 +141,71 @@ public final class SolrAppender extends AbstractAppender  {
      *                   the buffer reaches this size.
      * @param fieldConfigs Information about the columns that log event data should be inserted into and how to insert
      *                      that data.
+     * @param async If {@code "true"}, events are copied onto a bounded queue and indexed by background threads, so
+     *              the logging thread only pays for an enqueue. Defaults to {@code "false"}.
+     * @param queueCapacity The capacity of the hand-off queue when {@code async="true"}. Defaults to 1024.
+     * @param queueFullPolicy One of {@link QueueFullPolicy}; what to do with an event when the queue is full.
+     *                        Defaults to {@code BLOCK}.
+     * @param workerThreads The number of background indexer threads when {@code async="true"}. Defaults to 1.
+     * @param maxBatchDocuments The maximum number of documents sent to Solr in one update request; larger flushes are
+     *                          split into several requests. Defaults to 1000.
+     * @param maxBatchBytes The approximate maximum size in bytes of one update request, or {@code 0} for no limit.
+     *                      Defaults to 5 MiB.
+     * @param commitPolicy When to commit documents sent to Solr, see {@link CommitPolicy}. Defaults to
+     *                     {@code "flush"}, a hard commit after every flush.
+     * @param commitOnShutdown If {@code "true"} (default), documents not yet committed are committed when the
+     *                         appender stops, whatever the commit policy.
+     * @param flushIntervalMillis If greater than {@code 0}, buffered events are flushed once the oldest of them is
+     *                            this many milliseconds old, even if the buffer is not full; with
+     *                            {@code async="true"} the indexer threads wait up to this long for a batch to fill.
+     *                            The buffer is also flushed once it holds about {@code maxBatchBytes}. Defaults to
+     *                            {@code 0}, flushing on size only, or 1000 with {@code adaptiveBatching} or with
+     *                            {@code adaptiveLimits} on a synchronous appender.
+     * @param adaptiveBatching If {@code "true"}, batches are sized for use behind asynchronous loggers or an
+     *                         {@code Async} appender: events are buffered until the logger marks the end of a batch,
+     *                         which it does once its queue is empty, or until {@code bufferSize} events (by default
+     *                         {@code maxBatchDocuments}) are buffered. Light traffic is then sent event by event, and
+     *                         under load batches grow with the backlog that builds up while the previous one is sent.
+     *                         With {@code async="true"} the indexer threads likewise send whatever is queued without
+     *                         waiting for a batch to fill. Defaults to {@code "false"}.
+     * @param retryPolicy How failed update requests are retried with backoff, and after how many failures a circuit
+     *                    breaker stops sending for a while, see {@link RetryPolicy}. Defaults to no retries and no
+     *                    breaker.
+     * @param deadLetterAppender The name of an appender, such as a file appender, that receives the events Solr
+     *                           rejects, for example because a value does not match the schema. A batch failed
+     *                           with {@code 400} or {@code 413} is split to find the rejected events; the others are
+     *                           still indexed. Other rejections, such as a missing collection, fail the whole batch.
+     *                           Without it, rejected events are dropped.
+     * @param config The configuration, to look up the dead-letter appender.
+     * @param spoolDirectory If set, events that cannot be sent to Solr, or that are dropped because the hand-off queue
+     *                       is full, are written to a spool in this local directory and replayed in the background
+     *                       once Solr is reachable again. Events spooled before a restart are replayed after it.
+     * @param spoolMaxBytes The disk space the spool may use; events that do not fit are dropped. Defaults to 1 GiB.
+     * @param spoolSegmentBytes The size of one spool file. Defaults to 16 MiB.
+     * @param collection A {@link org.apache.logging.log4j.core.layout.PatternLayout} pattern that picks the
+     *                   collection or core of each event, such as {@code logs_%K{tenant}_%d{yyyy-MM-dd}}. Buffered
+     *                   documents are grouped by collection, so a flush sends one batch per collection, and the
+     *                   connection source should point at the Solr root rather than at a core. Events the pattern
+     *                   renders empty go to the connection source's own collection. Mutually exclusive with
+     *                   {@code collectionMapKey}.
+     * @param collectionMapKey The key of the {@link org.apache.logging.log4j.message.MapMessage} entry that names
+     *                         the collection of each event, read directly instead of through a pattern.
+     * @param adaptiveLimits If set, the batch size and the number of update requests in flight are tuned while the
+     *                       appender runs, growing while Solr answers within a target latency and shrinking when it
+     *                       slows down or fails, within the bounds given as described in
+     *                       {@link AdaptiveLimitPolicy}, such as {@code "maxBatch=5000,maxInFlight=4"}. Events are
+     *                       then always buffered, {@code bufferSize} is the batch size to start with, and a
+     *                       synchronous appender flushes at least every {@code flushIntervalMillis} so the tail of a
+     *                       burst is not held back by a batch size tuned during it. Defaults to a fixed batch size and
+     *                       {@code parallelism} requests at a time.
+     * @param parallelism The number of batches sent to Solr at the same time. Up to that many logging threads may
+     *                    flush their buffers at once, and an asynchronous appender runs at least that many indexer
+     *                    threads. Defaults to {@code 1}.
+     * @param orderingKey A {@link org.apache.logging.log4j.core.layout.PatternLayout} pattern, such as {@code %c} or
+     *                    {@code %K{host}}, whose events reach Solr in the order they were logged even with several
+     *                    batches in flight. An asynchronous appender then gives every indexer thread a hand-off queue
+     *                    of its own and routes each event by the hash of its key; a buffered synchronous appender
+     *                    sends its flushes one at a time. Events replayed from the spool may still arrive late.
      * @return a new SOLR appender.
      */
     @PluginFactory
@@ -121,13 +215,85 @@ public final class SolrAppender extends AbstractAppender  {
             @PluginElement("Filter") final Filter filter,
             @PluginElement("SolrConnectionSource") final SolrConnectionSource solrConnectionSource,
             @PluginAttribute("bufferSize") final String bufferSize,
-            @PluginElement("FieldConfigs") final FieldConfig[] fieldConfigs) {
+            @PluginElement("FieldConfigs") final FieldConfig[] fieldConfigs,
+            @PluginAttribute("async") final String async,
+            @PluginAttribute("queueCapacity") final String queueCapacity,
+            @PluginAttribute("queueFullPolicy") final String queueFullPolicy,
+            @PluginAttribute("workerThreads") final String workerThreads,
+            @PluginAttribute("maxBatchDocuments") final String maxBatchDocuments,
+            @PluginAttribute("maxBatchBytes") final String maxBatchBytes,
+            @PluginAttribute("commitPolicy") final String commitPolicy,
+            @PluginAttribute("commitOnShutdown") final String commitOnShutdown,
+            @PluginAttribute("flushIntervalMillis") final String flushIntervalMillis,
+            @PluginAttribute("adaptiveBatching") final String adaptiveBatching,
+            @PluginAttribute("retryPolicy") final String retryPolicy,
+            @PluginAttribute("deadLetterAppender") final String deadLetterAppender,
+            @PluginConfiguration final Configuration config,
+            @PluginAttribute("spoolDirectory") final String spoolDirectory,
+            @PluginAttribute("spoolMaxBytes") final String spoolMaxBytes,
+            @PluginAttribute("spoolSegmentBytes") final String spoolSegmentBytes,
+            @PluginAttribute("collection") final String collection,
+            @PluginAttribute("collectionMapKey") final String collectionMapKey,
+            @PluginAttribute("adaptiveLimits") final String adaptiveLimits,
+            @PluginAttribute("parallelism") final String parallelism,
+            @PluginAttribute("orderingKey") final String orderingKey) {
 
         final int bufferSizeInt = AbstractAppender.parseInt(bufferSize, 0);
         final boolean ignoreExceptions = Booleans.parseBoolean(ignore, true);
+        final boolean isAsync = Booleans.parseBoolean(async, false);
+        final int queueCapacityInt = AbstractAppender.parseInt(queueCapacity, 1024);
+        final int workerThreadsInt = AbstractAppender.parseInt(workerThreads, 1);
+        final int parallelismInt = AbstractAppender.parseInt(parallelism, 1);
+        final int maxBatchDocumentsInt = AbstractAppender.parseInt(maxBatchDocuments,
+                SolrClientManager.DEFAULT_MAX_BATCH_DOCUMENTS);
+        final long maxBatchBytesLong = parseLong(maxBatchBytes, SolrClientManager.DEFAULT_MAX_BATCH_BYTES);
+        final boolean isCommitOnShutdown = Booleans.parseBoolean(commitOnShutdown, true);
+        final boolean isAdaptiveBatching = Booleans.parseBoolean(adaptiveBatching, false);
+        final long spoolMaxBytesLong = parseLong(spoolMaxBytes, DiskSpool.DEFAULT_MAX_BYTES);
+        final int spoolSegmentBytesInt = AbstractAppender.parseInt(spoolSegmentBytes, DiskSpool.DEFAULT_SEGMENT_BYTES);
+        final QueueFullPolicy policy = QueueFullPolicy.toPolicy(queueFullPolicy, QueueFullPolicy.BLOCK);
+        if (policy == null) {
+            LOGGER.error("Unknown queueFullPolicy [{}] for SOLR appender [{}].", queueFullPolicy, name);
+            return null;
+        }
+        final CommitPolicy commit = CommitPolicy.toCommitPolicy(commitPolicy);
+        if (commit == null) {
+            return null;
+        }
+        final RetryPolicy retry = RetryPolicy.toRetryPolicy(retryPolicy);
+        if (retry == null) {
+            return null;
+        }
+        final AdaptiveLimitPolicy limits = AdaptiveLimitPolicy.toAdaptiveLimitPolicy(adaptiveLimits);
+        if (limits == null && Strings.isNotEmpty(adaptiveLimits)) {
+            return null;
+        }
+        // a safety net for events logged without an end-of-batch signal, such as by synchronous loggers, and for the
+        // tail of a burst that does not fill the tuned batch size
+        final long flushIntervalMillisLong = parseLong(flushIntervalMillis,
+                isAdaptiveBatching || limits != null && !isAsync ? 1000 : 0);
+        FieldConfig collectionConfig = null;
+        if (Strings.isNotEmpty(collection) || Strings.isNotEmpty(collectionMapKey)) {
+            collectionConfig = FieldConfig.createColumnConfig(config, "collection", collection, null, null,
+                    collectionMapKey, null, null, null, null);
+            if (collectionConfig == null) {
+                LOGGER.error("Invalid collection routing for SOLR appender [{}].", name);
+                return null;
+            }
+        }
+        FieldConfig orderingConfig = null;
+        if (Strings.isNotEmpty(orderingKey)) {
+            orderingConfig = FieldConfig.createColumnConfig(config, "orderingKey", orderingKey, null, null, null, null,
+                    null, null, null);
+            if (orderingConfig == null) {
+                LOGGER.error("Invalid orderingKey [{}] for SOLR appender [{}].", orderingKey, name);
+                return null;
+            }
+        }
 
         final StringBuilder managerName = new StringBuilder("solrAppender{ description=").append(name)
-                .append(", bufferSize=").append(bufferSizeInt).append(", connectionSource=")
+                .append(", bufferSize=").append(bufferSizeInt).append(", async=").append(isAsync)
+                .append(", connectionSource=")
                 .append(solrConnectionSource.toString()).append(", columns=[ ");
 
         int i = 0;
@@ -138,13 +304,49 @@ public final class SolrAppender extends AbstractAppender  {
             managerName.append(field.toString());
         }
 
-        managerName.append(" ] }");
+        managerName.append(" ], collection=").append(collectionConfig).append(", parallelism=").append(parallelismInt)
+                .append(", orderingKey=").append(orderingConfig).append(" }");
 
-        final SolrClientManager manager = SolrClientManager.getSlorClientManager(managerName.toString(), bufferSizeInt, solrConnectionSource, fieldConfigs);
+        final SolrClientManager manager = SolrClientManager.newBuilder()
+                .withName(managerName.toString())
+                .withBufferSize(bufferSizeInt)
+                .withConnectionSource(solrConnectionSource)
+                .withFieldConfigs(fieldConfigs)
+                .withAsync(isAsync)
+                .withQueueCapacity(queueCapacityInt)
+                .withQueueFullPolicy(policy)
+                .withWorkerThreads(workerThreadsInt)
+                .withMaxBatchDocuments(maxBatchDocumentsInt)
+                .withMaxBatchBytes(maxBatchBytesLong)
+                .withCommitPolicy(commit)
+                .withCommitOnShutdown(isCommitOnShutdown)
+                .withFlushIntervalMillis(flushIntervalMillisLong)
+                .withAdaptiveBatching(isAdaptiveBatching)
+                .withCollectionConfig(collectionConfig)
+                .withAdaptiveLimitPolicy(limits)
+                .withParallelism(parallelismInt)
+                .withOrderingConfig(orderingConfig)
+                .withRetryPolicy(retry)
+                .withSpoolDirectory(spoolDirectory)
+                .withSpoolMaxBytes(spoolMaxBytesLong)
+                .withSpoolSegmentBytes(spoolSegmentBytesInt)
+                .build();
         if (manager == null) {
             return null;
         }
 
-        return new SolrAppender(name, filter, ignoreExceptions, manager);
+        return new SolrAppender(name, filter, ignoreExceptions, manager, deadLetterAppender, config);
+    }
+
+    /**
+     * Parses a numeric plugin attribute, like {@link AbstractAppender#parseInt(String, int)} for longs.
+     */
+    static long parseLong(final String s, final long defaultValue) {
+        try {
+            return s == null ? defaultValue : Long.parseLong(s.trim());
+        } catch (final NumberFormatException e) {
+            LOGGER.error("Could not parse \"{}\" as a long, using default value {}: {}", s, defaultValue, e);
+            return defaultValue;
+        }
     }
 }
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.jmx.Server;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.PropertiesUtil;
+
+/**
+ * Exposes the metrics of a {@link SolrClientManager} as the {@link SolrAppenderAdminMBean} of its appender. JMX
+ * support is switched off with the same {@code log4j2.disable.jmx} property as Log4j's own MBeans.
+ *
+ * @author nthstage
+ *
+ */
+public final class SolrAppenderAdmin implements SolrAppenderAdminMBean {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    /** The name object names use when the logger context is not known. */
+    private static final String DEFAULT_CONTEXT_NAME = "Default";
+
+    /** The registered MBeans; after a reconfiguration the new appender's MBean replaces the old one's. */
+    private static final ConcurrentMap<ObjectName, SolrAppenderAdmin> REGISTERED = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final SolrClientManager manager;
+    private final SolrManagerMetrics metrics;
+    private final ObjectName objectName;
+
+    private SolrAppenderAdmin(final String name, final SolrClientManager manager, final ObjectName objectName) {
+        this.name = name;
+        this.manager = manager;
+        this.metrics = manager.getMetrics();
+        this.objectName = objectName;
+    }
+
+    /**
+     * Registers the MBean of an appender with the platform MBean server, replacing one of the same name in the same
+     * logger context.
+     *
+     * @param configuration The appender's configuration, to name its logger context; may be {@code null}.
+     * @param name The appender name.
+     * @param manager The appender's manager.
+     * @return the registered MBean, or {@code null} if JMX is disabled or registration failed.
+     */
+    static SolrAppenderAdmin register(final Configuration configuration, final String name,
+            final SolrClientManager manager) {
+        if (PropertiesUtil.getProperties().getBooleanProperty("log4j2.disable.jmx")) {
+            return null;
+        }
+        try {
+            final ObjectName objectName = new ObjectName(String.format(PATTERN,
+                    Server.escape(getContextName(configuration)), Server.escape(name)));
+            final SolrAppenderAdmin admin = new SolrAppenderAdmin(name, manager, objectName);
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            synchronized (REGISTERED) {
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+                server.registerMBean(admin, objectName);
+                REGISTERED.put(objectName, admin);
+            }
+            return admin;
+        } catch (final JMException e) {
+            LOGGER.warn("Could not register the JMX metrics of SOLR appender [{}]", name, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the name of the logger context a configuration belongs to, which the context records in the
+     *         configuration's properties before starting it, so it is known while appenders start.
+     */
+    private static String getContextName(final Configuration configuration) {
+        final Map<String, String> properties = configuration == null ? null
+                : configuration.<Map<String, String>>getComponent(Configuration.CONTEXT_PROPERTIES);
+        final String contextName = properties == null ? null : properties.get("contextName");
+        return contextName == null ? DEFAULT_CONTEXT_NAME : contextName;
+    }
+
+    /**
+     * Unregisters this MBean, unless another appender of the same name has replaced it.
+     */
+    void unregister() {
+        synchronized (REGISTERED) {
+            if (!REGISTERED.remove(this.objectName, this)) {
+                return;
+            }
+            try {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (server.isRegistered(this.objectName)) {
+                    server.unregisterMBean(this.objectName);
+                }
+            } catch (final JMException e) {
+                LOGGER.warn("Could not unregister the JMX metrics of SOLR appender [{}]", this.name, e);
+            }
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return this.objectName;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public long getAppendedEventCount() {
+        return this.metrics.appendedEvents.get();
+    }
+
+    @Override
+    public double getEventsPerSecond() {
+        return this.metrics.getEventsPerSecond();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return this.manager.getQueueDepth();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return this.manager.getQueueCapacity();
+    }
+
+    @Override
+    public int getBufferedEventCount() {
+        return this.manager.getBufferedEventCount();
+    }
+
+    @Override
+    public int getBatchSizeLimit() {
+        return this.manager.getBatchSizeLimit();
+    }
+
+    @Override
+    public int getInFlightRequestLimit() {
+        return this.manager.getInFlightRequestLimit();
+    }
+
+    @Override
+    public long getSentDocumentCount() {
+        return this.metrics.sentDocuments.get();
+    }
+
+    @Override
+    public long getSentRequestCount() {
+        return this.metrics.batchSizes.getCount();
+    }
+
+    @Override
+    public double getBatchSizeMean() {
+        return this.metrics.batchSizes.getMean();
+    }
+
+    @Override
+    public long getBatchSize99thPercentile() {
+        return this.metrics.batchSizes.getPercentile(99);
+    }
+
+    @Override
+    public long getBatchSizeMax() {
+        return this.metrics.batchSizes.getMax();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return this.metrics.flushLatency.getCount();
+    }
+
+    @Override
+    public double getFlushLatencyMean() {
+        return this.metrics.flushLatency.getMean();
+    }
+
+    @Override
+    public long getFlushLatency50thPercentile() {
+        return this.metrics.flushLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getFlushLatency99thPercentile() {
+        return this.metrics.flushLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getFlushLatencyMax() {
+        return this.metrics.flushLatency.getMax();
+    }
+
+    @Override
+    public double getRequestLatencyMean() {
+        return this.metrics.requestLatency.getMean();
+    }
+
+    @Override
+    public long getRequestLatency99thPercentile() {
+        return this.metrics.requestLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getCommitCount() {
+        return this.metrics.commitLatency.getCount();
+    }
+
+    @Override
+    public double getCommitLatencyMean() {
+        return this.metrics.commitLatency.getMean();
+    }
+
+    @Override
+    public long getCommitLatency99thPercentile() {
+        return this.metrics.commitLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getFailedRequestCount() {
+        return this.metrics.failedRequests.get() + this.manager.getStreamingFailureCount();
+    }
+
+    @Override
+    public long getStreamingFailureCount() {
+        return this.manager.getStreamingFailureCount();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return this.metrics.retries.get();
+    }
+
+    @Override
+    public long getFailedFlushCount() {
+        return this.metrics.failedFlushes.get();
+    }
+
+    @Override
+    public long getFailedCommitCount() {
+        return this.metrics.failedCommits.get();
+    }
+
+    @Override
+    public long getDroppedEventCount() {
+        return this.manager.getDroppedEventCount();
+    }
+
+    @Override
+    public long getRejectedDocumentCount() {
+        return this.manager.getRejectedDocumentCount();
+    }
+
+    @Override
+    public long getSpooledEventCount() {
+        return this.metrics.spooledEvents.get();
+    }
+
+    @Override
+    public long getSpoolPendingDocumentCount() {
+        return this.manager.getSpooledDocumentCount();
+    }
+
+    @Override
+    public boolean isCircuitBreakerOpen() {
+        return this.manager.isCircuitBreakerOpen();
+    }
+
+    @Override
+    public long getCircuitBreakerOpenCount() {
+        return this.metrics.circuitBreakerOpenings.get();
+    }
+}
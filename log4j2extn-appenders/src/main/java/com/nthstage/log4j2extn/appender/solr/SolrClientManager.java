@@ -15,20 +15,39 @@
  */
 package com.nthstage.log4j2extn.appender.solr;
 
+import java.io.File;
 import java.io.Flushable;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractManager;
 import org.apache.logging.log4j.core.appender.AppenderLoggingException;
-import org.apache.logging.log4j.core.layout.PatternLayout;
-import org.apache.logging.log4j.core.util.Closer;
+import org.apache.logging.log4j.core.async.DaemonThreadFactory;
+import org.apache.logging.log4j.core.config.AppenderControl;
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.Message;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.HttpSolrClient.RemoteSolrException;
-import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.common.SolrException;
 
 /**
  * Manager for SlorClinet objects
@@ -38,21 +57,170 @@ import org.apache.solr.common.SolrInputDocument;
  */
 public class SolrClientManager extends AbstractManager implements Flushable{
 
-	private final ArrayList<LogEvent> buffer;
+    static final int DEFAULT_MAX_BATCH_DOCUMENTS = 1000;
+
+    static final long DEFAULT_MAX_BATCH_BYTES = 5L * 1024 * 1024;
+
+    /** Number of events an indexer thread drains from the queue at once when no buffer size is configured. */
+    private static final int DEFAULT_ASYNC_BATCH_SIZE = 128;
+
+    private static final long WORKER_POLL_MILLIS = 100;
+
+    private static final int DOCUMENT_OVERHEAD_BYTES = 16;
+    private static final int FIELD_OVERHEAD_BYTES = 24;
+
+    private static final int INITIAL_PAYLOAD_BYTES = 64 * 1024;
+    private static final int INITIAL_FIELD_CHARS = 512;
+    /** Field buffers that grew beyond this for one unusually large value are shrunk again after the flush. */
+    private static final int MAX_RETAINED_FIELD_CHARS = 64 * 1024;
+
+    private static final long WORKER_SHUTDOWN_TIMEOUT_MILLIS = 30000;
+
+    private static final long SPOOL_REPLAY_INTERVAL_MILLIS = 1000;
+    /** How long the replayer waits for a free sender before it tries again on the next round. */
+    private static final long SPOOL_REPLAY_LOCK_WAIT_MILLIS = 100;
+
+    /**
+     * Events waiting for the next flush, in arrival order. Logging threads add to it without taking a lock; a flush
+     * moves them into one of the {@link #spareBuffers} and sends them from there, so logging threads keep buffering
+     * during Solr I/O.
+     */
+	private final ConcurrentLinkedQueue<LogEvent> buffer = new ConcurrentLinkedQueue<>();
+    /** The number of events in {@link #buffer}; counted after an event is added, so a flush never waits for one. */
+    private final AtomicInteger bufferedEvents = new AtomicInteger();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private volatile long oldestBufferedMillis;
+    /**
+     * The lists a flush can move the buffered events into; one is taken while a flush is being sent, so there is one
+     * per flush that may be in flight. Guarded by this manager's monitor.
+     */
+    private final ArrayDeque<ArrayList<LogEvent>> spareBuffers = new ArrayDeque<>();
+    /** The number of batches that may be sent at the same time. */
+    private final int parallelism;
+    /** Renders the key whose events keep their order, or {@code null} if events of concurrent sends may interleave. */
+    private final FieldConfig orderingConfig;
+    /** Receives the ordering key of an event while a logging thread picks its queue. */
+    private final ThreadLocal<StringBuilder> orderingKeys = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_FIELD_CHARS);
+        }
+    };
     private final int bufferSize;
+    private final long flushIntervalMillis;
+    /** Set when batches are sized by the end-of-batch signals and backlog of an asynchronous logger or queue. */
+    private final boolean adaptiveBatching;
     private final SolrConnectionSource solrConnectionSource;
     private final List<Field> fields;
+    /** Renders the collection of each event, or {@code null} if all events go to the connection source's own. */
+    private final FieldConfig collectionConfig;
+    private final LogEventSnapshotter snapshotter;
+    private final int maxBatchDocuments;
+    private final long maxBatchBytes;
+
+    /**
+     * The hand-off queues, or {@code null} if events are written synchronously. Without an ordering key all indexer
+     * threads share one queue; with one, every indexer thread drains a queue of its own and each event goes to the
+     * queue its key hashes to, so the events of a key are sent one batch after the other.
+     */
+    private final LogEventQueue[] queues;
+    private final QueueFullPolicy queueFullPolicy;
+    private final Thread[] workers;
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong rejectedDocuments = new AtomicLong();
+    private final SolrManagerMetrics metrics = new SolrManagerMetrics();
+    /** Receives the events Solr rejects; set when the appender starts. */
+    private volatile AppenderControl deadLetterAppender;
 
-    private boolean running = false;
-    private SolrClient solrClient;
+    private final CommitPolicy commitPolicy;
+    private final boolean commitOnShutdown;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker breaker;
+    private ScheduledExecutorService scheduler;
+
+    /** Holds documents that could not be sent, or {@code null} if no spool is configured. */
+    private final DiskSpool spool;
+    /** Renders the documents written to {@link #spool}; guarded by the spool's monitor. */
+    private final Renderer spoolRenderer;
+    private ScheduledExecutorService replayer;
+    /** Set when events are first spooled and cleared once the spool is drained, so an outage is logged once. */
+    private volatile boolean spooling;
+
+    /** Tunes the batch size and the number of requests in flight, or {@code null} if both are fixed. */
+    private final AdaptiveLimiter limiter;
+    /**
+     * The senders not in use. Every conversation with Solr takes one, so there are as many as requests may be in
+     * flight; each renders into its own payload and leases its own client, so sends need no lock between them.
+     */
+    private final BlockingQueue<Sender> senders;
+    /** Documents sent since the last commit; guarded by {@link #uncommittedCollections}. */
+    private long uncommittedDocuments;
+    /** The collections the documents sent since the last commit went to; {@code null} stands for the default one. */
+    private final Set<String> uncommittedCollections = new LinkedHashSet<>();
+
+    private volatile boolean running = false;
+    private volatile boolean stopping = false;
     
 	protected SolrClientManager(String name, int bufferSizeInt,
 			SolrConnectionSource solrConnectionSource, List<Field> fields ) {
-        super(name);
-        this.bufferSize = bufferSizeInt;
-        this.buffer = new ArrayList<>(bufferSize + 1);
-        this.solrConnectionSource = solrConnectionSource;
+        this(newBuilder().withName(name).withBufferSize(bufferSizeInt).withConnectionSource(solrConnectionSource)
+                .withMaxBatchDocuments(Integer.MAX_VALUE).withMaxBatchBytes(0), fields, null);
+    }
+
+    private SolrClientManager(final Builder builder, final List<Field> fields, final DiskSpool spool) {
+        super(builder.name);
+        this.collectionConfig = builder.collectionConfig;
+        this.snapshotter = new LogEventSnapshotter(this.collectionConfig == null ? builder.fieldConfigs
+                : withCollectionConfig(builder.fieldConfigs, this.collectionConfig));
+        this.adaptiveBatching = builder.adaptiveBatching;
+        this.parallelism = Math.max(1, builder.parallelism);
+        this.orderingConfig = builder.orderingConfig;
+        this.limiter = builder.adaptiveLimitPolicy == null ? null : new AdaptiveLimiter(builder.adaptiveLimitPolicy,
+                Math.max(1, builder.maxBatchDocuments), builder.bufferSize, this.parallelism);
+        if (this.limiter != null) {
+            // the buffer is flushed at the tuned batch size, so it only needs to hold the largest one
+            this.bufferSize = this.limiter.getMaxBatch();
+        } else {
+            // an adaptive batch ends at the end of the caller's batch, so the buffer size only caps it
+            this.bufferSize = this.adaptiveBatching && builder.bufferSize <= 0
+                    ? Math.max(1, builder.maxBatchDocuments) : builder.bufferSize;
+        }
+        // flushes taken by different logging threads would interleave the events of a key, so they go one by one
+        final int spareBufferCount = this.orderingConfig == null ? this.parallelism : 1;
+        for (int i = 0; i < spareBufferCount; i++) {
+            this.spareBuffers.push(new ArrayList<LogEvent>(bufferSize + 1));
+        }
+        this.solrConnectionSource = builder.connectionSource;
+        final boolean clientEncoding = this.solrConnectionSource != null && this.solrConnectionSource.isClientEncoding();
+        final int senderCount = this.limiter == null ? this.parallelism
+                : Math.max(this.parallelism, this.limiter.getMaxInFlight());
+        this.senders = new ArrayBlockingQueue<>(senderCount);
+        for (int i = 0; i < senderCount; i++) {
+            this.senders.add(new Sender(clientEncoding));
+        }
         this.fields = fields;
+        this.maxBatchDocuments = Math.max(1, builder.maxBatchDocuments);
+        this.maxBatchBytes = builder.maxBatchBytes;
+        this.queueFullPolicy = builder.queueFullPolicy;
+        if (builder.async) {
+            // every batch in flight needs an indexer thread to send it
+            this.workers = new Thread[Math.max(this.parallelism, Math.max(1, builder.workerThreads))];
+            this.queues = new LogEventQueue[this.orderingConfig == null ? 1 : this.workers.length];
+            final int queueCapacity = (builder.queueCapacity + this.queues.length - 1) / this.queues.length;
+            for (int i = 0; i < this.queues.length; i++) {
+                this.queues[i] = new LogEventQueue(queueCapacity);
+            }
+        } else {
+            this.queues = null;
+            this.workers = new Thread[0];
+        }
+        this.commitPolicy = builder.commitPolicy;
+        this.commitOnShutdown = builder.commitOnShutdown;
+        this.retryPolicy = builder.retryPolicy;
+        this.breaker = new CircuitBreaker(this.retryPolicy.getBreakAfter(), this.retryPolicy.getBreakMillis());
+        this.flushIntervalMillis = builder.flushIntervalMillis;
+        this.spool = spool;
+        this.spoolRenderer = spool == null ? null : new Renderer();
     }
 
     /**
@@ -62,101 +230,449 @@ public class SolrClientManager extends AbstractManager implements Flushable{
     public final synchronized void startup() {
         if (!this.isRunning()) {
             try {
-                this.connectAndStart();
+                if (!this.isAsync() && this.orderingConfig != null && this.parallelism > 1) {
+                    logWarn("orderingKey keeps buffered flushes of logging threads one at a time; use async to send "
+                            + "ordered batches in parallel", null);
+                }
+                if (this.solrConnectionSource instanceof ConcurrentUpdateSolrConnectionSource
+                        && this.commitPolicy.getMode() == CommitPolicy.Mode.FLUSH) {
+                    // a commit waits for the stream to drain, so committing every flush defeats streaming
+                    logWarn("commitPolicy flush makes " + this.solrConnectionSource
+                            + " wait for every flush; consider commitWithin or interval", null);
+                }
                 this.running = true;
             } catch (final Exception e) {
                 logError("could not perform database startup operations", e);
             }
+            this.startWorkers();
+            this.startScheduler();
+            this.startReplayer();
+            this.startHealthCheck();
         }
     }
 
     /**
-     * Indicates whether the manager is currently connected {@link #startup()} has been called and {@link #shutdown()}
-     * has not been called).
+     * Pings Solr once in the background, so a cloud source connecting to ZooKeeper or an unreachable server does not
+     * hold up the configuration. Routed appenders point their source at the Solr root, which does not answer pings,
+     * so they are not checked.
+     */
+    private void startHealthCheck() {
+        if (this.collectionConfig != null) {
+            return;
+        }
+        new DaemonThreadFactory("SolrHealthCheck-").newThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!solrConnectionSource.isHealthy() && isRunning()) {
+                    logWarn("SOLR server of " + solrConnectionSource + " is not answering pings yet", null);
+                }
+            }
+        }).start();
+    }
+
+    private void startScheduler() {
+        final long commitInterval = this.commitPolicy.getIntervalMillis();
+        final boolean timedFlush = this.flushIntervalMillis > 0 && this.bufferSize > 0 && !this.isAsync();
+        if (commitInterval <= 0 && !timedFlush) {
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("SolrScheduler-"));
+        if (timedFlush) {
+            // check a few times per interval so no event lingers much longer than flushIntervalMillis
+            final long period = Math.max(1, this.flushIntervalMillis / 4);
+            this.scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flushIfOlderThan(flushIntervalMillis);
+                    } catch (final Exception e) {
+                        logError("Failed to flush SOLR buffer on timer", e);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+        if (commitInterval <= 0) {
+            return;
+        }
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commitPending();
+                } catch (final Exception e) {
+                    logError("Failed to commit SOLR documents on timer", e);
+                }
+            }
+        }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopScheduler() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdown();
+            try {
+                this.scheduler.awaitTermination(WORKER_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * Commits the documents sent since the last commit, if there are any.
+     */
+    protected final void commitPending() {
+        if (!this.isRunning() || this.getUncommittedDocuments() == 0) {
+            return;
+        }
+        final Sender sender = this.acquireSender();
+        try {
+            if (this.isRunning() && this.getUncommittedDocuments() > 0) {
+                sender.commitPending();
+            }
+        } finally {
+            this.releaseSender(sender);
+        }
+    }
+
+    private long getUncommittedDocuments() {
+        synchronized (this.uncommittedCollections) {
+            return this.uncommittedDocuments;
+        }
+    }
+
+    /**
+     * Hands back the collections a failed commit did not get to, so the next commit takes them.
+     */
+    private void restoreUncommitted(final String[] collections, final int fromCollection, final long documents) {
+        synchronized (this.uncommittedCollections) {
+            for (int i = fromCollection; i < collections.length; i++) {
+                this.uncommittedCollections.add(collections[i]);
+            }
+            this.uncommittedDocuments += documents;
+        }
+    }
+
+    /**
+     * Takes a sender, waiting while as many requests as allowed are in flight. An interrupt does not end the wait; it
+     * is restored once a sender is taken.
+     */
+    private Sender acquireSender() {
+        if (this.limiter != null) {
+            this.limiter.acquire();
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return this.senders.take();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return a sender, or {@code null} if none was free within {@code timeoutMillis}.
+     */
+    private Sender tryAcquireSender(final long timeoutMillis) throws InterruptedException {
+        if (this.limiter != null && !this.limiter.tryAcquire(timeoutMillis)) {
+            return null;
+        }
+        Sender sender = null;
+        try {
+            sender = this.senders.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            return sender;
+        } finally {
+            if (sender == null && this.limiter != null) {
+                this.limiter.release();
+            }
+        }
+    }
+
+    private void releaseSender(final Sender sender) {
+        this.senders.add(sender);
+        if (this.limiter != null) {
+            this.limiter.release();
+        }
+    }
+
+    /**
+     * Flushes the buffer if its oldest event was buffered at least {@code maxAgeMillis} ago. Only taking the events
+     * out of the buffer holds the manager's monitor; they are sent after it is released.
      *
-     * @return {@code true} if the manager is connected.
+     * @param maxAgeMillis The age at which buffered events are flushed.
      */
-    public final boolean isRunning() {
-        return this.running;
+    protected final void flushIfOlderThan(final long maxAgeMillis) {
+        if (this.bufferedEvents.get() == 0 || System.currentTimeMillis() - this.oldestBufferedMillis < maxAgeMillis) {
+            return;
+        }
+        this.sendBuffer(this.swapBuffer(1));
     }
 
     /**
-     * Connects to the database and starts a transaction (if applicable). With buffering enabled, this is called when
-     * flushing the buffer begins, before the first call to {@link #writeInternal}. With buffering disabled, this is
-     * called immediately before every invocation of {@link #writeInternal}.
+     * Moves the buffered events into a spare buffer and hands it to the caller. If all spare buffers are still being
+     * sent, waits for one: this is the only point where logging threads feel Solr's back-pressure, and the only lock
+     * they take while buffering.
+     *
+     * @param minEvents The number of buffered events below which there is nothing to flush, because another thread
+     *                  flushed them while this one waited.
+     * @return the buffered events, or {@code null} if there are fewer than {@code minEvents} or the wait was
+     *         interrupted.
      */
-    protected void connectAndStart() {
-    	try {
-			this.solrClient = this.solrConnectionSource.getSolrClient();
-		} catch (SolrServerException e) {
-			new AppenderLoggingException(
-					"Cannot write logging event or flush buffer; SOLR manager cannot connect to the solr database.", e
-			);
-		}
+    private synchronized ArrayList<LogEvent> swapBuffer(final int minEvents) {
+        while (this.spareBuffers.isEmpty()) {
+            try {
+                this.wait();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        final int count = this.bufferedEvents.get();
+        if (count == 0 || count < minEvents) {
+            return null;
+        }
+        final ArrayList<LogEvent> events = this.spareBuffers.pop();
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            final LogEvent event = this.buffer.poll();
+            events.add(event);
+            bytes += estimateSize(event);
+        }
+        this.bufferedBytes.addAndGet(-bytes);
+        if (this.bufferedEvents.addAndGet(-count) > 0) {
+            // the events buffered meanwhile start a new age
+            this.oldestBufferedMillis = System.currentTimeMillis();
+        }
+        return events;
     }
 
+    /**
+     * Sends a buffer taken with {@link #swapBuffer()} without holding the manager's monitor, then hands it back as a
+     * spare buffer.
+     */
+    private void sendBuffer(final ArrayList<LogEvent> events) {
+        if (events == null) {
+            return;
+        }
+        try {
+            // events that could not be sent were spooled if a spool is configured; otherwise they are lost
+            this.send(events);
+        } finally {
+            events.clear();
+            synchronized (this) {
+                this.spareBuffers.push(events);
+                this.notifyAll();
+            }
+        }
+    }
 
-    protected void writeInternal(LogEvent event) {		
-		SolrInputDocument document = new SolrInputDocument();
-		
-		if(!this.isRunning() || this.solrClient == null) {
-			throw new AppenderLoggingException(
-					"cannot write logging event; SOLR manager not connected to the solr database.");
-		}
-		
-		for (final Field field : this.fields) {
-			if(field.literalValue!=null){
-				document.addField(field.fieldName, field.literalValue);
-			} else if (field.isEventTimestamp) {
-            	document.addField(field.fieldName, event.getTimeMillis());
-            } else {
-            	document.addField(field.fieldName, field.layout.toSerializable(event));
+    /**
+     * Indicates whether events are handed off to background indexer threads.
+     *
+     * @return {@code true} if the manager was configured with one or more indexer threads.
+     */
+    public final boolean isAsync() {
+        return this.queues != null;
+    }
+
+    /**
+     * @return the number of events discarded because the hand-off queue was full.
+     */
+    public final long getDroppedEventCount() {
+        return this.droppedEvents.get();
+    }
+
+    /**
+     * @return the number of events waiting in the hand-off queue, or {@code 0} without one.
+     */
+    public final int getQueueDepth() {
+        if (this.queues == null) {
+            return 0;
+        }
+        int size = 0;
+        for (final LogEventQueue queue : this.queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the capacity of the hand-off queue, or {@code 0} without one.
+     */
+    public final int getQueueCapacity() {
+        if (this.queues == null) {
+            return 0;
+        }
+        int capacity = 0;
+        for (final LogEventQueue queue : this.queues) {
+            capacity += queue.capacity();
+        }
+        return capacity;
+    }
+
+    /**
+     * @return the number of events waiting in the buffer for the next flush.
+     */
+    public final int getBufferedEventCount() {
+        return this.bufferedEvents.get();
+    }
+
+    /**
+     * @return {@code true} if requests are held back because Solr failed repeatedly.
+     */
+    public final boolean isCircuitBreakerOpen() {
+        return this.breaker.isOpen();
+    }
+
+    /**
+     * @return the number of events a flush holds; with adaptive limits it is tuned while the appender runs.
+     */
+    public final int getBatchSizeLimit() {
+        if (this.limiter != null) {
+            return this.limiter.getBatchLimit();
+        }
+        if (this.bufferSize > 0) {
+            return this.bufferSize;
+        }
+        return this.isAsync() ? DEFAULT_ASYNC_BATCH_SIZE : 1;
+    }
+
+    /**
+     * @return the number of update requests that may be in flight at once; with adaptive limits it is tuned while the
+     *         appender runs.
+     */
+    public final int getInFlightRequestLimit() {
+        return this.limiter == null ? this.parallelism : this.limiter.getInFlightLimit();
+    }
+
+    /**
+     * @return the most documents sent in one update request.
+     */
+    private int getRequestDocumentLimit() {
+        return this.limiter == null ? this.maxBatchDocuments : this.limiter.getBatchLimit();
+    }
+
+    final SolrManagerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return the number of update requests the connection source failed to send in the background, whose documents
+     *         were lost; {@code 0} unless it streams updates.
+     * @see AbstractSolrConnectionSource#getFailedRequestCount()
+     */
+    public final long getStreamingFailureCount() {
+        return this.solrConnectionSource instanceof AbstractSolrConnectionSource
+                ? ((AbstractSolrConnectionSource) this.solrConnectionSource).getFailedRequestCount() : 0;
+    }
+
+    /**
+     * @return the number of documents Solr rejected, which were handed to the dead-letter appender or dropped.
+     */
+    public final long getRejectedDocumentCount() {
+        return this.rejectedDocuments.get();
+    }
+
+    /**
+     * Sets the appender that receives the log events whose documents Solr rejects, such as a file appender. Without
+     * one, rejected events are dropped.
+     *
+     * @param deadLetterAppender The appender, or {@code null}.
+     */
+    final void setDeadLetterAppender(final AppenderControl deadLetterAppender) {
+        this.deadLetterAppender = deadLetterAppender;
+    }
+
+    /**
+     * @return the number of documents waiting in the disk spool to be replayed.
+     */
+    public final long getSpooledDocumentCount() {
+        return this.spool == null ? 0 : this.spool.getPendingDocumentCount();
+    }
+
+    private void startWorkers() {
+        if (!this.isAsync()) {
+            return;
+        }
+        final DaemonThreadFactory threadFactory = new DaemonThreadFactory("SolrIndexer-");
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = threadFactory.newThread(new IndexerTask(this.queues[i % this.queues.length]));
+            this.workers[i].start();
+        }
+    }
+
+    private void stopWorkers() {
+        if (!this.isAsync() || this.workers[0] == null) {
+            return;
+        }
+        this.stopping = true;
+        try {
+            for (final Thread worker : this.workers) {
+                worker.join(WORKER_SHUTDOWN_TIMEOUT_MILLIS);
             }
-		}
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logWarn("interrupted while waiting for the SOLR indexer threads to finish", e);
+        }
+        final long dropped = this.droppedEvents.get();
+        if (dropped > 0) {
+            logWarn(dropped + " log events were dropped because the SOLR hand-off queue was full", null);
+        }
+    }
+
+    /**
+     * Indicates whether the manager is currently connected {@link #startup()} has been called and {@link #shutdown()}
+     * has not been called).
+     *
+     * @return {@code true} if the manager is connected.
+     */
+    public final boolean isRunning() {
+        return this.running;
+    }
+
+	/**
+	 * Waits before a retry.
+	 *
+	 * @return {@code false} if the wait was interrupted and the request should not be retried.
+	 */
+	private boolean backOff(int retry) {
 		try {
-			solrClient.add(document);
-		} catch (SolrServerException e) {
-			throw new AppenderLoggingException("Failed to insert record for log event in SOLR manager: " +
-                    e.getMessage(), e);
-		} catch (IOException e) {
-			throw new AppenderLoggingException("Failed to insert record for log event in SOLR manager: " +
-                    e.getMessage(), e);
-		}catch (RemoteSolrException e) {
-			if(solrClient!=null) {
-				try {
-					Closer.close(solrClient);
-				} catch (IOException ioee) {
-					
-				} finally {
-					this.solrClient = null;
-				}
-			}
-			throw new AppenderLoggingException("Failed to insert record for log event in SOLR manager: " +
-                    e.getMessage(), e);
+			TimeUnit.MILLISECONDS.sleep(this.retryPolicy.getBackoffMillis(retry));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
 		}
 	}
 
-	
-	protected void commitAndClose() {
-		try {
-			if(solrClient!=null) {
-				solrClient.commit();
+	/**
+	 * Approximates the size of the document an event will become from the text of its message and context map,
+	 * without formatting the message.
+	 */
+	private static long estimateSize(LogEvent event) {
+		long size = DOCUMENT_OVERHEAD_BYTES;
+		final Message message = event.getMessage();
+		if (message instanceof MapMessage) {
+			for (final Map.Entry<String, String> entry : ((MapMessage) message).getData().entrySet()) {
+				size += FIELD_OVERHEAD_BYTES + entry.getKey().length() + entry.getValue().length();
 			}
-		} catch (SolrServerException e) {
-			throw new AppenderLoggingException("Failed to commit solr transaction logging event or flushing buffer.", e);
-		} catch (IOException e) {
-			throw new AppenderLoggingException("Failed to commit solr transaction logging event or flushing buffer.", e);
+		} else if (message != null && message.getFormat() != null) {
+			size += message.getFormat().length();
 		}
-		finally {
-			try {
-				Closer.close(solrClient);
-			} catch (IOException e) {
-				
-			} finally {
-				this.solrClient = null;
+		final Map<String, String> contextMap = event.getContextMap();
+		if (contextMap != null) {
+			for (final Map.Entry<String, String> entry : contextMap.entrySet()) {
+				size += FIELD_OVERHEAD_BYTES + entry.getKey().length() + entry.getValue().length();
 			}
-			
 		}
+		return size;
 	}
 
     /**
@@ -164,54 +680,269 @@ public class SolrClientManager extends AbstractManager implements Flushable{
      * {@link #shutdown()}. It can also be called manually to flush events to the database.
      */
     @Override
-    public final synchronized void flush() {
-        if (this.isRunning() && this.buffer.size() > 0) {
-            this.connectAndStart();
-            try {
-                for (final LogEvent event : this.buffer) {
-                    this.writeInternal(event);
-                }
-            } finally {
-                this.commitAndClose();
-                // not sure if this should be done when writing the events failed
-                this.buffer.clear();
-            }
+    public final void flush() {
+        if (this.isRunning()) {
+            this.sendBuffer(this.swapBuffer(1));
+        }
+    }
+
+    /**
+     * Writes a batch of events taken from the hand-off queue by an indexer thread.
+     *
+     * @param events The events to write to the database.
+     */
+    protected final void writeBatch(final List<LogEvent> events) {
+        this.send(events);
+    }
+
+    private void send(final List<LogEvent> events) {
+        if (!this.isRunning() || events.isEmpty()) {
+            return;
+        }
+        final Sender sender = this.acquireSender();
+        try {
+            sender.send(events);
+        } finally {
+            this.releaseSender(sender);
         }
     }
 
     /**
-     * This method manages buffering and writing of events.
+     * This method manages buffering and writing of events. Events that are buffered or handed off to the indexer
+     * threads are first copied into an immutable memento, because Log4j may reuse the event object once this method
+     * returns; the fields themselves are rendered by the thread that flushes.
      *
      * @param event The event to write to the database.
      */
-    public final synchronized void write(final LogEvent event) {
+    public final void write(final LogEvent event) {
+        this.metrics.appendedEvents.increment();
+        if (this.isAsync()) {
+            this.enqueue(event);
+        } else {
+            this.writeSynchronously(event);
+        }
+    }
+
+    private void enqueue(final LogEvent event) {
+        final LogEventQueue queue = this.queueOf(event);
+        final LogEvent snapshot = this.snapshotter.snapshot(event);
+        switch (this.queueFullPolicy) {
+        case DROP_NEWEST:
+            if (!queue.offer(snapshot)) {
+                this.overflow(snapshot);
+            }
+            break;
+        case DROP_OLDEST:
+            while (!queue.offer(snapshot)) {
+                final LogEvent oldest = queue.poll();
+                if (oldest != null) {
+                    this.overflow(oldest);
+                }
+            }
+            break;
+        case SYNCHRONOUS:
+            if (!queue.offer(snapshot)) {
+                // not into the side buffer: in async mode no timer flushes it
+                this.send(Collections.singletonList(snapshot));
+            }
+            break;
+        default:
+            try {
+                queue.put(snapshot);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.send(Collections.singletonList(snapshot));
+            }
+            break;
+        }
+    }
+
+    /**
+     * Picks the hand-off queue of an event: the only one, or the one its ordering key hashes to.
+     */
+    private LogEventQueue queueOf(final LogEvent event) {
+        if (this.queues.length == 1) {
+            return this.queues[0];
+        }
+        final StringBuilder key = this.orderingKeys.get();
+        key.setLength(0);
+        try {
+            this.orderingConfig.format(event, key);
+        } catch (final RuntimeException e) {
+            LOGGER.debug("Cannot render the SOLR ordering key of a log event; using the first queue", e);
+            key.setLength(0);
+        }
+        int hash = 0;
+        for (int i = 0; i < key.length(); i++) {
+            hash = 31 * hash + key.charAt(i);
+        }
+        if (key.capacity() > MAX_RETAINED_FIELD_CHARS) {
+            this.orderingKeys.remove();
+        }
+        // spread the bits, as HashMap does, so keys that differ in their high bits pick different queues
+        hash ^= hash >>> 16;
+        return this.queues[(hash & Integer.MAX_VALUE) % this.queues.length];
+    }
+
+    private void writeSynchronously(final LogEvent event) {
         if (this.bufferSize > 0) {
-            this.buffer.add(event);
-            if (this.buffer.size() >= this.bufferSize || event.isEndOfBatch()) {
-                this.flush();
+            final LogEvent snapshot = this.snapshotter.snapshot(event);
+            this.buffer.offer(snapshot);
+            final long bytes = this.bufferedBytes.addAndGet(estimateSize(snapshot));
+            final int buffered = this.bufferedEvents.incrementAndGet();
+            if (buffered == 1) {
+                this.oldestBufferedMillis = System.currentTimeMillis();
+            }
+            final int batchSize = this.getBatchSizeLimit();
+            if (buffered < batchSize && !event.isEndOfBatch()
+                    && (this.maxBatchBytes <= 0 || bytes < this.maxBatchBytes)) {
+                return;
+            }
+            if (this.isRunning()) {
+                // once the buffer is full every logging thread tries to flush; only the first sends a full buffer
+                this.sendBuffer(this.swapBuffer(buffered >= batchSize ? batchSize : 1));
             }
         } else {
-            this.connectAndStart();
+            final Sender sender = this.acquireSender();
             try {
-                this.writeInternal(event);
+                sender.write(event);
             } finally {
-                this.commitAndClose();
+                this.releaseSender(sender);
             }
         }
     }
+
+    /**
+     * Handles an event that does not fit into the hand-off queue: spools it if a spool is configured, otherwise drops
+     * it.
+     * <p>
+     * Unlike the documents of a failed send, the event is not forced to disk: that would cost a sync per event on the
+     * logging thread. The mapped segment survives a crash of the process; only an operating system crash loses the
+     * events written since the last force, by a failed send, a segment rollover or {@link DiskSpool#close()}.
+     * </p>
+     */
+    private void overflow(final LogEvent event) {
+        if (this.spool == null) {
+            this.droppedEvents.incrementAndGet();
+            return;
+        }
+        synchronized (this.spool) {
+            this.spoolRenderer.append(event, this.spool);
+        }
+        this.metrics.spooledEvents.incrementAndGet();
+        if (!this.spooling) {
+            this.spooling = true;
+            logWarn("SOLR hand-off queue is full; spooling log events to " + this.spool, null);
+        }
+    }
+
+    /**
+     * Indicates whether a failed send should be spooled and retried later. Requests Solr rejected as invalid would
+     * fail again, so they are not.
+     */
+    private boolean isSpoolable(final Throwable failure) {
+        return this.spool != null && RetryPolicy.isRetriable(failure);
+    }
+
+    private void startReplayer() {
+        if (this.spool == null) {
+            return;
+        }
+        this.replayer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("SolrSpoolReplayer-"));
+        this.replayer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replaySpool();
+                } catch (final Exception e) {
+                    logError("Failed to replay spooled SOLR documents", e);
+                }
+            }
+        }, SPOOL_REPLAY_INTERVAL_MILLIS, SPOOL_REPLAY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopReplayer() {
+        if (this.replayer != null) {
+            this.replayer.shutdownNow();
+            try {
+                this.replayer.awaitTermination(WORKER_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.replayer = null;
+        }
+    }
+
+    /**
+     * Sends spooled documents back to Solr, one batch at a time, until the spool is empty or a batch fails. Live
+     * flushes come first: a batch is only replayed when a sender is free, and after each batch the replayer pauses
+     * for as long as the batch took, so replay never takes more than half of the time with Solr.
+     */
+    protected final void replaySpool() {
+        while (this.isRunning() && this.spool.getPendingDocumentCount() > 0) {
+            final long start = System.nanoTime();
+            if (!this.replayBatch()) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(System.nanoTime() - start);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if a batch was replayed and acknowledged.
+     */
+    private boolean replayBatch() {
+        final Sender sender;
+        try {
+            sender = this.tryAcquireSender(SPOOL_REPLAY_LOCK_WAIT_MILLIS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (sender == null) {
+            return false;
+        }
+        try {
+            return sender.replay();
+        } finally {
+            this.releaseSender(sender);
+        }
+    }
     
 	@Override
     public final void releaseSub() {
-		this.flush();
+		this.stopWorkers();
+		this.stopScheduler();
+		this.stopReplayer();
+		try {
+			this.flush();
+		} catch (final Exception e) {
+			logWarn("caught exception while flushing the SOLR buffer on shutdown", e);
+		}
 		 if (this.isRunning()) {
 			 try {
-	                this.commitAndClose();
+	                if (this.commitOnShutdown) {
+	                    this.commitPending();
+	                }
 	            } catch (final Exception e) {
 	                logWarn("caught exception while performing database shutdown operations", e);
 	            } finally {
 	                this.running = false;
+	                this.solrConnectionSource.close();
 	            }
 		}
+		if (this.spool != null) {
+			final long pending = this.spool.getPendingDocumentCount();
+			if (pending > 0) {
+				logWarn(pending + " log events stay in " + this.spool + " and are replayed on the next start", null);
+			}
+			this.spool.close();
+		}
     }
 	
     @Override
@@ -221,26 +952,980 @@ public class SolrClientManager extends AbstractManager implements Flushable{
     
 	public static SolrClientManager getSlorClientManager(String name, int bufferSizeInt,
 			SolrConnectionSource solrConnectionSource, FieldConfig[] fieldConfigs) {
+		return newBuilder().withName(name).withBufferSize(bufferSizeInt).withConnectionSource(solrConnectionSource)
+				.withFieldConfigs(fieldConfigs).build();
+	} 
+
+	private static List<Field> toFields(final FieldConfig[] fieldConfigs) {
 		final List<Field> fields = new ArrayList<Field>();
         for (final FieldConfig config : fieldConfigs) {
-            if (config.getLiteralValue() == null) {
-            	fields.add(new Field(config.getFieldName(), config.getLayout(), config.isEventTimestamp(), config.getLiteralValue()));
-            }
+            // literals are rendered like any other field, through their accessor
+            fields.add(new Field(config.getFieldName(), config, config.isEventTimestamp()));
         }
-		return new SolrClientManager(name, bufferSizeInt, solrConnectionSource, fields);
-	} 
-	
+        return fields;
+	}
+
+	private static FieldConfig[] withCollectionConfig(final FieldConfig[] fieldConfigs, final FieldConfig collectionConfig) {
+		final FieldConfig[] configs = Arrays.copyOf(fieldConfigs, fieldConfigs.length + 1);
+		configs[fieldConfigs.length] = collectionConfig;
+		return configs;
+	}
+
+	private static boolean equals(final String a, final String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builds {@link SolrClientManager} instances.
+	 */
+	public static class Builder implements org.apache.logging.log4j.core.util.Builder<SolrClientManager> {
+
+		private String name;
+		private int bufferSize;
+		private SolrConnectionSource connectionSource;
+		private FieldConfig[] fieldConfigs = new FieldConfig[0];
+		private boolean async;
+		private int queueCapacity = 1024;
+		private QueueFullPolicy queueFullPolicy = QueueFullPolicy.BLOCK;
+		private int workerThreads = 1;
+		private int maxBatchDocuments = DEFAULT_MAX_BATCH_DOCUMENTS;
+		private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+		private CommitPolicy commitPolicy = CommitPolicy.DEFAULT;
+		private boolean commitOnShutdown = true;
+		private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+		private long flushIntervalMillis;
+		private boolean adaptiveBatching;
+		private FieldConfig collectionConfig;
+		private AdaptiveLimitPolicy adaptiveLimitPolicy;
+		private int parallelism = 1;
+		private FieldConfig orderingConfig;
+		private String spoolDirectory;
+		private long spoolMaxBytes = DiskSpool.DEFAULT_MAX_BYTES;
+		private int spoolSegmentBytes = DiskSpool.DEFAULT_SEGMENT_BYTES;
+
+		private Builder() {
+		}
+
+		public Builder withName(final String name) {
+			this.name = name;
+			return this;
+		}
+
+		public Builder withBufferSize(final int bufferSize) {
+			this.bufferSize = bufferSize;
+			return this;
+		}
+
+		public Builder withConnectionSource(final SolrConnectionSource connectionSource) {
+			this.connectionSource = connectionSource;
+			return this;
+		}
+
+		public Builder withFieldConfigs(final FieldConfig[] fieldConfigs) {
+			this.fieldConfigs = fieldConfigs;
+			return this;
+		}
+
+		/**
+		 * @param async If {@code true}, events are handed off to background indexer threads and the logging thread only
+		 *              pays for an enqueue.
+		 */
+		public Builder withAsync(final boolean async) {
+			this.async = async;
+			return this;
+		}
+
+		public Builder withQueueCapacity(final int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+			return this;
+		}
+
+		public Builder withQueueFullPolicy(final QueueFullPolicy queueFullPolicy) {
+			this.queueFullPolicy = queueFullPolicy;
+			return this;
+		}
+
+		public Builder withWorkerThreads(final int workerThreads) {
+			this.workerThreads = workerThreads;
+			return this;
+		}
+
+		/**
+		 * @param maxBatchDocuments The maximum number of documents sent to Solr in a single update request; larger
+		 *                          flushes are split into several requests.
+		 */
+		public Builder withMaxBatchDocuments(final int maxBatchDocuments) {
+			this.maxBatchDocuments = maxBatchDocuments;
+			return this;
+		}
+
+		/**
+		 * @param maxBatchBytes The approximate maximum size in bytes of a single update request, or {@code 0} for no
+		 *                      limit.
+		 */
+		public Builder withMaxBatchBytes(final long maxBatchBytes) {
+			this.maxBatchBytes = maxBatchBytes;
+			return this;
+		}
+
+		/**
+		 * @param commitPolicy When to ask Solr to commit the documents sent.
+		 */
+		public Builder withCommitPolicy(final CommitPolicy commitPolicy) {
+			this.commitPolicy = commitPolicy;
+			return this;
+		}
+
+		/**
+		 * @param commitOnShutdown If {@code true}, documents not yet committed are committed when the manager is
+		 *                         released, whatever the commit policy.
+		 */
+		public Builder withCommitOnShutdown(final boolean commitOnShutdown) {
+			this.commitOnShutdown = commitOnShutdown;
+			return this;
+		}
+
+		/**
+		 * @param retryPolicy How often failed update requests are retried, and when to stop sending for a while.
+		 */
+		public Builder withRetryPolicy(final RetryPolicy retryPolicy) {
+			this.retryPolicy = retryPolicy;
+			return this;
+		}
+
+		/**
+		 * @param flushIntervalMillis If greater than {@code 0}, buffered events are flushed once the oldest of them
+		 *                            is this old, even if the buffer is not full. Asynchronous indexer threads wait
+		 *                            up to this long for a batch to fill.
+		 */
+		public Builder withFlushIntervalMillis(final long flushIntervalMillis) {
+			this.flushIntervalMillis = flushIntervalMillis;
+			return this;
+		}
+
+		/**
+		 * @param adaptiveBatching If {@code true}, events are buffered until the caller marks the end of a batch, as
+		 *                         asynchronous loggers and the {@code Async} appender do once their queue is empty,
+		 *                         or until the buffer is full. A buffer size of {@code 0} then means up to
+		 *                         {@code maxBatchDocuments} events, and indexer threads send whatever is queued
+		 *                         without waiting for a batch to fill.
+		 */
+		public Builder withAdaptiveBatching(final boolean adaptiveBatching) {
+			this.adaptiveBatching = adaptiveBatching;
+			return this;
+		}
+
+		/**
+		 * @param collectionConfig Renders the collection or core each event is indexed into, for example from a
+		 *                         pattern such as {@code logs_%K{tenant}_%d{yyyy-MM-dd}}. Events without a value go
+		 *                         to the connection source's own collection. {@code null}, the default, sends every
+		 *                         event there.
+		 */
+		public Builder withCollectionConfig(final FieldConfig collectionConfig) {
+			this.collectionConfig = collectionConfig;
+			return this;
+		}
+
+		/**
+		 * @param adaptiveLimitPolicy If set, the batch size and the number of update requests in flight are tuned
+		 *                            within its bounds while the manager runs, and events are always buffered.
+		 *                            {@code null}, the default, keeps the buffer size and one request at a time.
+		 */
+		public Builder withAdaptiveLimitPolicy(final AdaptiveLimitPolicy adaptiveLimitPolicy) {
+			this.adaptiveLimitPolicy = adaptiveLimitPolicy;
+			return this;
+		}
+
+		/**
+		 * @param parallelism The number of batches sent at the same time: logging threads may flush that many buffers
+		 *                    at once, and at least that many indexer threads drain the hand-off queue. Defaults to
+		 *                    {@code 1}.
+		 */
+		public Builder withParallelism(final int parallelism) {
+			this.parallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * @param orderingConfig Renders a key, such as the logger name or a host field, whose events are sent in the
+		 *                       order they were logged even when several batches are in flight. The hand-off queue is
+		 *                       split into one queue per indexer thread, and each event goes to the queue its key
+		 *                       hashes to. {@code null}, the default, lets the events of concurrent batches
+		 *                       interleave.
+		 */
+		public Builder withOrderingConfig(final FieldConfig orderingConfig) {
+			this.orderingConfig = orderingConfig;
+			return this;
+		}
+
+		/**
+		 * @param spoolDirectory If set, events that cannot be sent to Solr, or do not fit into the hand-off queue, are
+		 *                       written to a spool in this directory and replayed once Solr is reachable.
+		 */
+		public Builder withSpoolDirectory(final String spoolDirectory) {
+			this.spoolDirectory = spoolDirectory;
+			return this;
+		}
+
+		/**
+		 * @param spoolMaxBytes The disk space the spool may use; events that do not fit are dropped.
+		 */
+		public Builder withSpoolMaxBytes(final long spoolMaxBytes) {
+			this.spoolMaxBytes = spoolMaxBytes;
+			return this;
+		}
+
+		/**
+		 * @param spoolSegmentBytes The size of one spool file.
+		 */
+		public Builder withSpoolSegmentBytes(final int spoolSegmentBytes) {
+			this.spoolSegmentBytes = spoolSegmentBytes;
+			return this;
+		}
+
+		/**
+		 * @return the manager, or {@code null} if the spool directory cannot be used.
+		 */
+		@Override
+		public SolrClientManager build() {
+			DiskSpool spool = null;
+			if (this.spoolDirectory != null && !this.spoolDirectory.isEmpty()) {
+				try {
+					spool = DiskSpool.open(new File(this.spoolDirectory), this.spoolMaxBytes, this.spoolSegmentBytes);
+				} catch (final IOException e) {
+					LOGGER.error("Cannot open SOLR spool directory {} for {}", this.spoolDirectory, this.name, e);
+					return null;
+				}
+			}
+			return new SolrClientManager(this, toFields(this.fieldConfigs), spool);
+		}
+	}
+
+	/**
+	 * Drains a hand-off queue in batches until the manager is released and the queue is empty.
+	 */
+	private final class IndexerTask implements Runnable {
+
+		private final LogEventQueue queue;
+
+		IndexerTask(final LogEventQueue queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			final List<LogEvent> batch = new ArrayList<>(getBatchSizeLimit());
+			// adaptive batches are as large as the backlog that built up during the previous send, so never linger
+			final long lingerNanos = adaptiveBatching ? 0 : TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+			while (!stopping || !queue.isEmpty()) {
+				// with adaptive limits the batch size changes from one send to the next
+				final int batchSize = getBatchSizeLimit();
+				try {
+					final LogEvent first = queue.poll(WORKER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					queue.drainTo(batch, batchSize - batch.size());
+					final long deadline = System.nanoTime() + lingerNanos;
+					long remaining = lingerNanos;
+					while (batch.size() < batchSize && remaining > 0 && !stopping) {
+						final LogEvent next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+						if (next == null) {
+							break;
+						}
+						batch.add(next);
+						queue.drainTo(batch, batchSize - batch.size());
+						remaining = deadline - System.nanoTime();
+					}
+				} catch (final InterruptedException e) {
+					// keep draining; the loop ends once the manager is stopping and the queue is empty
+				}
+				queue.drainTo(batch, batchSize - batch.size());
+				try {
+					writeBatch(batch);
+				} catch (final Exception e) {
+					logError("Failed to write " + batch.size() + " log events to SOLR", e);
+				} finally {
+					batch.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Talks to Solr for one send at a time: renders a flush into its own payload, leases a client and sends the
+	 * payload in batches. A send takes a sender from {@link #senders} and hands it back when it is done, so senders
+	 * need no lock; what they share, the commit bookkeeping, the breaker and the metrics, is thread-safe.
+	 */
+	private final class Sender {
+		/** The rendered documents of the send in progress, reused across sends. */
+		private final DocumentBatch payload;
+		private final Renderer renderer = new Renderer();
+		private SolrClient solrClient;
+		/** The number of documents of {@link #payload} Solr has accepted so far. */
+		private int sentDocuments;
+		/** The events the documents of {@link #payload} were rendered from, or {@code null} for replayed documents. */
+		private List<LogEvent> flushEvents;
+		/** The index in {@link #flushEvents} of each document of {@link #payload}. */
+		private int[] documentEvents = new int[64];
+		/** Holds the event of an unbuffered write, so it needs no list of its own. */
+		private final List<LogEvent> singleEvent = new ArrayList<>(1);
+		/** The collection of each event of a routed flush, and the working arrays that group the events by it. */
+		private String[] eventCollections = new String[64];
+		private int[] eventGroups = new int[64];
+		private int[] eventOrder = new int[64];
+		private int[] groupStarts = new int[16];
+		private final Map<String, Integer> collectionGroups = new HashMap<>();
+
+		Sender(final boolean clientEncoding) {
+			this.payload = clientEncoding ? new SolrInputDocumentBatch() : new UpdatePayload(INITIAL_PAYLOAD_BYTES);
+		}
+
+		/**
+		 * Sends the events of a flush, spooling the ones that could not be sent if a spool is configured.
+		 */
+		void send(final List<LogEvent> events) {
+			if (!isRunning() || events.isEmpty()) {
+				return;
+			}
+			final long start = System.nanoTime();
+			try {
+				final int documentCount = collectionConfig == null ? this.appendDocuments(events)
+						: this.appendDocumentsByCollection(events);
+				this.sentDocuments = 0;
+				this.flushEvents = events;
+				try {
+					this.connectAndStart();
+					try {
+						this.writePayload();
+					} finally {
+						this.commitAndClose();
+					}
+				} catch (final RuntimeException e) {
+					if (this.sentDocuments >= documentCount || !isSpoolable(e)) {
+						throw e;
+					}
+					// documents Solr accepted or rejected before the failure are not spooled again
+					this.spool(events, this.sentDocuments, documentCount, e);
+				}
+			} catch (final RuntimeException e) {
+				metrics.failedFlushes.incrementAndGet();
+				throw e;
+			} finally {
+				this.flushEvents = null;
+				this.resetPayload();
+				metrics.flushLatency.record(SolrManagerMetrics.toMicros(start));
+			}
+		}
+
+		/**
+		 * Sends a single unbuffered event, spooling it if it could not be sent and a spool is configured.
+		 */
+		void write(final LogEvent event) {
+			final long start = System.nanoTime();
+			try {
+				this.sentDocuments = 0;
+				try {
+					this.connectAndStart();
+					try {
+						this.writeInternal(event);
+					} finally {
+						this.resetPayload();
+						this.commitAndClose();
+					}
+				} catch (final RuntimeException e) {
+					if (this.sentDocuments > 0 || !isSpoolable(e)) {
+						throw e;
+					}
+					this.documentEvents[0] = 0;
+					this.spool(Collections.singletonList(event), 0, 1, e);
+				}
+			} catch (final RuntimeException e) {
+				metrics.failedFlushes.incrementAndGet();
+				throw e;
+			} finally {
+				metrics.flushLatency.record(SolrManagerMetrics.toMicros(start));
+			}
+		}
+
+		/**
+		 * @return {@code true} if a batch was replayed and acknowledged.
+		 */
+		boolean replay() {
+			try {
+				if (!isRunning()) {
+					return false;
+				}
+				final int documentCount = spool.replay(this.payload, getRequestDocumentLimit());
+				if (documentCount == 0) {
+					return false;
+				}
+				try {
+					this.connectAndStart();
+					try {
+						this.writePayload();
+					} finally {
+						this.commitAndClose();
+					}
+				} catch (final RuntimeException e) {
+					if (isSpoolable(e)) {
+						LOGGER.debug("SOLR is not reachable yet; keeping {} spooled documents", documentCount, e);
+						return false;
+					}
+					logError("SOLR rejected " + documentCount + " spooled documents; they are dropped", e);
+				}
+				spool.acknowledge();
+				if (spooling && spool.getPendingDocumentCount() == 0) {
+					spooling = false;
+					LOGGER.info("Replayed all spooled log events of {} to SOLR", getName());
+				}
+				return true;
+			} finally {
+				this.resetPayload();
+			}
+		}
+
+		/**
+		 * Commits the documents sent since the last commit with a client of its own.
+		 */
+		void commitPending() {
+			this.connectAndStart();
+			try {
+				this.commit();
+			} finally {
+				this.close();
+			}
+		}
+
+		/**
+		 * Leases a client from the connection source. This is called when a send begins, before the first call to
+		 * {@link #writePayload}.
+		 */
+		void connectAndStart() {
+			if (!breaker.allowRequest()) {
+				throw new AppenderLoggingException(
+						"Cannot write logging event or flush buffer; SOLR failed repeatedly and the circuit breaker is open.");
+			}
+			try {
+				this.solrClient = solrConnectionSource.getSolrClient();
+			} catch (SolrServerException e) {
+				throw new AppenderLoggingException(
+						"Cannot write logging event or flush buffer; SOLR manager cannot connect to the solr database.", e
+				);
+			}
+		}
+
+		void writeInternal(LogEvent event) {
+			this.payload.reset();
+			this.appendDocument(event);
+			this.singleEvent.add(event);
+			this.flushEvents = this.singleEvent;
+			this.documentEvents[0] = 0;
+			try {
+				this.writePayload();
+			} finally {
+				this.flushEvents = null;
+				this.singleEvent.clear();
+			}
+		}
+
+		/**
+		 * Renders an event into the payload, one document per event. Field patterns are formatted into a reused
+		 * {@link StringBuilder} and encoded from there, so unless the connection source encodes documents itself, no
+		 * strings or {@code SolrInputDocument}s are created.
+		 *
+		 * @param event The event to render.
+		 */
+		void appendDocument(LogEvent event) {
+			this.renderer.append(event, this.payload);
+		}
+
+		/**
+		 * Sends the payload to Solr, one update request per batch of at most {@code maxBatchDocuments} documents, or
+		 * the adaptive batch size, and {@code maxBatchBytes} bytes, all for the same collection.
+		 */
+		void writePayload() {
+			if(!isRunning() || this.solrClient == null) {
+				throw new AppenderLoggingException(
+						"cannot write logging event; SOLR manager not connected to the solr database.");
+			}
+			final int documentCount = this.payload.getDocumentCount();
+			final int batchDocuments = getRequestDocumentLimit();
+			int batchStart = 0;
+			long batchBytes = 0;
+			for (int i = 0; i < documentCount; i++) {
+				final int documentBytes = this.payload.getDocumentSize(i);
+				// routed documents are grouped by collection, and each request goes to one collection
+				final boolean full = i - batchStart >= batchDocuments
+						|| (maxBatchBytes > 0 && batchBytes + documentBytes > maxBatchBytes)
+						|| (collectionConfig != null
+								&& !SolrClientManager.equals(this.payload.getCollection(i), this.payload.getCollection(batchStart)));
+				if (i > batchStart && full) {
+					this.sendIsolatingRejects(batchStart, i, null);
+					batchStart = i;
+					batchBytes = 0;
+				}
+				batchBytes += documentBytes;
+			}
+			if (batchStart < documentCount) {
+				this.sendIsolatingRejects(batchStart, documentCount, null);
+			}
+		}
+
+		/**
+		 * Sends a run of documents. If Solr rejects the request, for example because one document does not match the
+		 * schema, the run is split in halves that are sent on their own, until the rejected documents are found and
+		 * handed to the dead-letter appender. When the first half goes through, the second one must hold a rejected
+		 * document, so it is split without being sent whole: one bad document in a batch of {@code n} costs about
+		 * {@code log2(n)} extra requests. Failures that may pass, and rejections no single document can cause, such
+		 * as a {@code 404} for a collection that does not exist or a {@code 403}, are not split but thrown.
+		 *
+		 * @param fromDocument The first document, inclusive.
+		 * @param toDocument The last document, exclusive.
+		 * @param knownFailure The rejection of an enclosing run if this run is known to hold a rejected document,
+		 *                     otherwise {@code null}.
+		 * @return {@code true} if a document was rejected.
+		 */
+		private boolean sendIsolatingRejects(int fromDocument, int toDocument, AppenderLoggingException knownFailure) {
+			AppenderLoggingException failure = knownFailure;
+			if (failure == null) {
+				try {
+					this.sendBatch(fromDocument, toDocument);
+					return false;
+				} catch (AppenderLoggingException e) {
+					if (!RetryPolicy.isDocumentRejection(e)) {
+						throw e;
+					}
+					failure = e;
+				}
+			}
+			if (toDocument - fromDocument == 1) {
+				this.deadLetter(fromDocument, failure);
+				return true;
+			}
+			final int middle = (fromDocument + toDocument) >>> 1;
+			final boolean firstRejected = this.sendIsolatingRejects(fromDocument, middle, null);
+			this.sendIsolatingRejects(middle, toDocument, firstRejected ? null : failure);
+			return true;
+		}
+
+		/**
+		 * Hands a document Solr rejected to the dead-letter appender, as the event it was rendered from, or logs it if
+		 * there is no appender or no event, as for replayed documents.
+		 */
+		private void deadLetter(int document, Exception failure) {
+			this.sentDocuments = document + 1;
+			final long rejected = rejectedDocuments.incrementAndGet();
+			final AppenderControl appender = deadLetterAppender;
+			final LogEvent event = this.flushEvents == null ? null : this.flushEvents.get(this.documentEvents[document]);
+			if (appender != null && event != null) {
+				try {
+					appender.callAppender(event);
+					return;
+				} catch (Exception e) {
+					logError("Dead-letter appender " + appender.getAppenderName() + " failed for a log event SOLR rejected", e);
+				}
+			}
+			if (rejected == 1) {
+				logError("SOLR rejected a log event; it is dropped. Further rejections are counted and logged at debug level",
+						failure);
+			} else {
+				LOGGER.debug("SOLR rejected a log event; it is dropped", failure);
+			}
+		}
+
+		/**
+		 * Sends one update request, retrying failures that may pass as the retry policy allows. The request is sent
+		 * with the leased client; after a failure that invalidated it, the retry leases a new one. Every answer is
+		 * reported to the adaptive limiter, if there is one.
+		 */
+		private void sendBatch(int fromDocument, int toDocument) {
+			final AbstractUpdateRequest request = this.payload.newRequest(fromDocument, toDocument,
+					commitPolicy.getCommitWithinMillis());
+			final String collection = this.payload.getCollection(fromDocument);
+			final int documentCount = toDocument - fromDocument;
+			for (int retry = 0;; retry++) {
+				Exception failure;
+				try {
+					if (this.solrClient == null) {
+						this.solrClient = solrConnectionSource.getSolrClient();
+					}
+					final long start = System.nanoTime();
+					request.process(this.solrClient, collection);
+					final long latencyNanos = System.nanoTime() - start;
+					metrics.requestLatency.record(latencyNanos / 1000);
+					metrics.batchSizes.record(documentCount);
+					metrics.sentDocuments.addAndGet(documentCount);
+					synchronized (uncommittedCollections) {
+						uncommittedDocuments += documentCount;
+						uncommittedCollections.add(collection);
+					}
+					this.sentDocuments = toDocument;
+					breaker.onSuccess();
+					if (limiter != null) {
+						limiter.onResponse(this.payload.getDocumentCount() >= limiter.getBatchLimit(), latencyNanos);
+					}
+					return;
+				} catch (SolrServerException e) {
+					this.invalidate();
+					failure = e;
+				} catch (IOException e) {
+					this.invalidate();
+					failure = e;
+				} catch (SolrException e) {
+					// remote errors carry the HTTP status; client-side ones, such as a lost ZooKeeper connection, are 500
+					if (e.code() >= 500) {
+						this.invalidate();
+					}
+					failure = e;
+				}
+				metrics.failedRequests.incrementAndGet();
+				if (limiter != null && RetryPolicy.isRetriable(failure)) {
+					// Solr is overloaded or unreachable, so send less and fewer at once
+					limiter.onOverload();
+				}
+				if (!RetryPolicy.isRetriable(failure)) {
+					// Solr answered, so it is up; the request itself is at fault
+					breaker.onSuccess();
+				} else if (retry < retryPolicy.getRetries() && isRunning() && backOff(retry)) {
+					LOGGER.debug("Retrying {} records for log events in SOLR manager {} after: {}", documentCount,
+							getName(), failure.getMessage());
+					metrics.retries.incrementAndGet();
+					continue;
+				} else if (breaker.onFailure()) {
+					metrics.circuitBreakerOpenings.incrementAndGet();
+					logWarn("SOLR keeps failing; not sending for " + retryPolicy.getBreakMillis() + " ms", failure);
+				}
+				throw new AppenderLoggingException("Failed to insert " + documentCount + " records for log events in SOLR manager: " +
+						failure.getMessage(), failure);
+			}
+		}
+
+		/**
+		 * Drops the rendered documents, keeping the buffers for the next send unless one value made them unusually
+		 * large.
+		 */
+		private void resetPayload() {
+			this.payload.reset();
+			this.renderer.trimBuffers();
+		}
+
+		/**
+		 * Commits if the commit policy asks for a commit after this flush, then lets go of the client.
+		 */
+		void commitAndClose() {
+			try {
+				if(this.solrClient!=null && commitPolicy.isCommitAfterFlush(getUncommittedDocuments())) {
+					this.commit();
+				}
+			}
+			finally {
+				this.close();
+			}
+		}
+
+		/**
+		 * Commits every collection written since the last commit. The collections are taken over before the commit,
+		 * so documents other senders add meanwhile wait for the next one; if the commit fails, the collections not
+		 * committed are handed back.
+		 */
+		private void commit() {
+			if (this.solrClient == null) {
+				return;
+			}
+			final String[] collections;
+			final long documents;
+			synchronized (uncommittedCollections) {
+				if (uncommittedCollections.isEmpty()) {
+					return;
+				}
+				collections = uncommittedCollections.toArray(new String[uncommittedCollections.size()]);
+				documents = uncommittedDocuments;
+				uncommittedCollections.clear();
+				uncommittedDocuments = 0;
+			}
+			final long start = System.nanoTime();
+			int committed = 0;
+			try {
+				for (; committed < collections.length; committed++) {
+					this.solrClient.commit(collections[committed], true, false, commitPolicy.isSoftCommit());
+				}
+				metrics.commitLatency.record(SolrManagerMetrics.toMicros(start));
+			} catch (SolrServerException e) {
+				metrics.failedCommits.incrementAndGet();
+				this.invalidate();
+				throw new AppenderLoggingException("Failed to commit solr transaction logging event or flushing buffer.", e);
+			} catch (IOException e) {
+				metrics.failedCommits.incrementAndGet();
+				this.invalidate();
+				throw new AppenderLoggingException("Failed to commit solr transaction logging event or flushing buffer.", e);
+			} catch (SolrException e) {
+				metrics.failedCommits.incrementAndGet();
+				if (e.code() >= 500) {
+					this.invalidate();
+				}
+				throw new AppenderLoggingException("Failed to commit solr transaction logging event or flushing buffer.", e);
+			} finally {
+				if (committed < collections.length) {
+					restoreUncommitted(collections, committed, documents);
+				}
+			}
+		}
+
+		/**
+		 * Hands the leased client back to the connection source; the client and its connections stay open.
+		 */
+		private void close() {
+			if (this.solrClient != null) {
+				solrConnectionSource.releaseSolrClient(this.solrClient);
+				this.solrClient = null;
+			}
+		}
+
+		/**
+		 * Tells the connection source that the leased client failed so the next lease gets a fresh one.
+		 */
+		private void invalidate() {
+			if (this.solrClient != null) {
+				solrConnectionSource.invalidateSolrClient(this.solrClient);
+				this.solrClient = null;
+			}
+		}
+
+		/**
+		 * Renders the events of a flush in their order.
+		 *
+		 * @return the number of documents rendered.
+		 */
+		private int appendDocuments(final List<LogEvent> events) {
+			int documentCount = 0;
+			for (int i = 0; i < events.size(); i++) {
+				this.appendDocument(events.get(i));
+				if (this.payload.getDocumentCount() > documentCount) {
+					this.setDocumentEvent(documentCount++, i);
+				}
+			}
+			return documentCount;
+		}
+
+		/**
+		 * Renders the events of a flush grouped by collection, in the order each collection first appears and keeping
+		 * the order of the events within a collection, so that every collection gets one run of documents.
+		 *
+		 * @return the number of documents rendered.
+		 */
+		private int appendDocumentsByCollection(final List<LogEvent> events) {
+			final int eventCount = events.size();
+			if (this.eventCollections.length < eventCount) {
+				final int capacity = Math.max(eventCount, this.eventCollections.length * 2);
+				this.eventCollections = new String[capacity];
+				this.eventGroups = new int[capacity];
+				this.eventOrder = new int[capacity];
+			}
+			// a counting sort on the collections, numbered in order of appearance
+			this.collectionGroups.clear();
+			for (int i = 0; i < eventCount; i++) {
+				final String collection = this.renderer.renderCollection(events.get(i));
+				Integer group = this.collectionGroups.get(collection);
+				if (group == null) {
+					group = this.collectionGroups.size();
+					this.collectionGroups.put(collection, group);
+				}
+				this.eventCollections[i] = collection;
+				this.eventGroups[i] = group;
+			}
+			final int groupCount = this.collectionGroups.size();
+			if (this.groupStarts.length <= groupCount) {
+				this.groupStarts = new int[Math.max(groupCount + 1, this.groupStarts.length * 2)];
+			}
+			Arrays.fill(this.groupStarts, 0, groupCount + 1, 0);
+			for (int i = 0; i < eventCount; i++) {
+				this.groupStarts[this.eventGroups[i] + 1]++;
+			}
+			for (int group = 0; group < groupCount; group++) {
+				this.groupStarts[group + 1] += this.groupStarts[group];
+			}
+			for (int i = 0; i < eventCount; i++) {
+				this.eventOrder[this.groupStarts[this.eventGroups[i]]++] = i;
+			}
+			int documentCount = 0;
+			for (int k = 0; k < eventCount; k++) {
+				final int i = this.eventOrder[k];
+				this.renderer.append(events.get(i), this.eventCollections[i], this.payload);
+				if (this.payload.getDocumentCount() > documentCount) {
+					this.setDocumentEvent(documentCount++, i);
+				}
+			}
+			Arrays.fill(this.eventCollections, 0, eventCount, null);
+			return documentCount;
+		}
+
+		private void setDocumentEvent(final int document, final int event) {
+			if (document == this.documentEvents.length) {
+				this.documentEvents = Arrays.copyOf(this.documentEvents, document * 2);
+			}
+			this.documentEvents[document] = event;
+		}
+
+		/**
+		 * Writes the events of the documents that were not sent to the disk spool so the replayer can send them once
+		 * Solr is reachable again.
+		 *
+		 * @param events The events of the failed send.
+		 * @param fromDocument The first document not sent; {@link #documentEvents} maps it to its event.
+		 * @param toDocument The last document of the send, exclusive.
+		 * @param failure Why the send failed.
+		 */
+		private void spool(final List<LogEvent> events, final int fromDocument, final int toDocument,
+				final RuntimeException failure) {
+			synchronized (spool) {
+				for (int i = fromDocument; i < toDocument; i++) {
+					spoolRenderer.append(events.get(this.documentEvents[i]), spool);
+				}
+				spool.force();
+				spoolRenderer.trimBuffers();
+			}
+			metrics.spooledEvents.addAndGet(toDocument - fromDocument);
+			if (!spooling) {
+				spooling = true;
+				logWarn("Cannot send log events to SOLR; spooling them to " + spool + " until it is reachable: "
+						+ failure.getMessage(), failure);
+			}
+		}
+	}
+
+	/**
+	 * Renders events field by field into a {@link DocumentWriter}. Each sender, and the spool, has its own renderer,
+	 * because field values are formatted into the renderer's buffers.
+	 */
+	private final class Renderer {
+		/** Receives each rendered field value before it is handed to the writer. */
+		private StringBuilder fieldBuffer = new StringBuilder(INITIAL_FIELD_CHARS);
+		/** Receives the single values of a multi-valued field. */
+		private StringBuilder valueBuffer = new StringBuilder(INITIAL_FIELD_CHARS);
+		/** The collection rendered last; events of one flush mostly share a few collections. */
+		private String lastCollection;
+
+		/**
+		 * Renders an event as one document. An event that cannot be rendered is logged and left out.
+		 */
+		void append(LogEvent event, DocumentWriter target) {
+			this.append(event, collectionConfig == null ? null : this.renderCollection(event), target);
+		}
+
+		/**
+		 * Renders an event as one document for a collection already rendered with {@link #renderCollection}.
+		 */
+		void append(LogEvent event, String collection, DocumentWriter target) {
+			target.startDocument();
+			target.setCollection(collection);
+			try {
+				for (final Field field : fields) {
+					if (field.isEventTimestamp && field.config.getType() != FieldType.DATE) {
+						target.addField(field.fieldName, event.getTimeMillis());
+					} else {
+						this.appendField(field, event, target);
+					}
+				}
+			} catch (RuntimeException e) {
+				// one event that cannot be rendered should not cost the rest of the batch
+				target.abortDocument();
+				logError("Failed to render log event for SOLR; the event is dropped", e);
+				return;
+			}
+			target.endDocument();
+		}
+
+		/**
+		 * @return the collection of an event, or {@code null} if it has none or it cannot be rendered.
+		 */
+		String renderCollection(LogEvent event) {
+			final StringBuilder text = this.fieldBuffer;
+			text.setLength(0);
+			try {
+				if (!collectionConfig.format(event, text)) {
+					return null;
+				}
+			} catch (RuntimeException e) {
+				LOGGER.debug("Cannot render the SOLR collection of a log event; using the default one", e);
+				return null;
+			}
+			FieldType.trim(text);
+			if (text.length() == 0) {
+				return null;
+			}
+			final String last = this.lastCollection;
+			if (last != null && last.contentEquals(text)) {
+				return last;
+			}
+			this.lastCollection = text.toString();
+			return this.lastCollection;
+		}
+
+		private void appendField(Field field, LogEvent event, DocumentWriter target) {
+			final StringBuilder text = this.fieldBuffer;
+			text.setLength(0);
+			if (!field.config.format(event, text)) {
+				return;
+			}
+			if (!field.config.isMultiValued()) {
+				this.appendValue(field, text, target);
+				return;
+			}
+			final String separator = field.config.getSeparator();
+			final StringBuilder value = this.valueBuffer;
+			int start = 0;
+			while (start <= text.length()) {
+				int end = text.indexOf(separator, start);
+				if (end < 0) {
+					end = text.length();
+				}
+				value.setLength(0);
+				value.append(text, start, end);
+				FieldType.trim(value);
+				if (value.length() > 0) {
+					this.appendValue(field, value, target);
+				}
+				start = end + separator.length();
+			}
+		}
+
+		private void appendValue(Field field, StringBuilder value, DocumentWriter target) {
+			final FieldType type = field.config.getType();
+			if (type.normalize(value)) {
+				target.addField(field.fieldName, value);
+			} else {
+				LOGGER.debug("Leaving out value [{}] of SOLR field {}; it is not a valid {}", value, field.fieldName, type);
+			}
+		}
+
+		/**
+		 * Shrinks buffers that grew for one unusually large value.
+		 */
+		void trimBuffers() {
+			if (this.fieldBuffer.capacity() > MAX_RETAINED_FIELD_CHARS) {
+				this.fieldBuffer = new StringBuilder(INITIAL_FIELD_CHARS);
+			}
+			if (this.valueBuffer.capacity() > MAX_RETAINED_FIELD_CHARS) {
+				this.valueBuffer = new StringBuilder(INITIAL_FIELD_CHARS);
+			}
+		}
+	}
+
 	private static class Field {
 		 private final String fieldName;
-		 private final PatternLayout layout;
+		 private final FieldConfig config;
 	     private final boolean isEventTimestamp;
-	     private final String literalValue;
 	     
-		 private Field(final String fieldName, final PatternLayout layout, final boolean isEventDate, final String literalValue) {
+		 private Field(final String fieldName, final FieldConfig config, final boolean isEventDate) {
 			  this.fieldName=fieldName;
-		      this.layout = layout;
+		      this.config = config;
 		      this.isEventTimestamp = isEventDate;
-		      this.literalValue = literalValue;
 		  }
 		 
 	 }
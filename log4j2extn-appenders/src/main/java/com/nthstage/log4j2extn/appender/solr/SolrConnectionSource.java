@@ -16,28 +16,70 @@
 package com.nthstage.log4j2extn.appender.solr;
 
 
-import java.sql.SQLException;
-
-import org.apache.logging.log4j.core.appender.db.jdbc.JdbcAppender;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrServerException;
 
 /**
- * Configuration element for {@link JdbcAppender}. If you want to use the {@link JdbcAppender} but none of the provided
- * connection sources meet your needs, you can simply create your own connection source.
+ * Configuration element for {@link SolrAppender}. If you want to use the {@link SolrAppender} but none of the provided
+ * connection sources meet your needs, you can simply create your own connection source. Most implementations should
+ * extend {@link AbstractSolrConnectionSource}, which keeps one client open for the life of the source.
+ * <p>
+ * {@link SolrClientManager} leases a client with {@link #getSolrClient()} before each flush and hands it back with
+ * {@link #releaseSolrClient(SolrClient)} afterwards. Clients and their HTTP connections are expected to stay open
+ * across flushes; only a client passed to {@link #invalidateSolrClient(SolrClient)} after a transport failure should
+ * be closed and rebuilt.
+ * </p>
  * 
  * @author nthstage
  * 
  */
 public interface SolrConnectionSource {
     /**
-     * This should return a new connection every time it is called.
+     * Leases a client. The client may be shared with other callers and must not be closed by the caller.
      *
-     * @return the SQL connection object.
-     * @throws SQLException if a database error occurs.
+     * @return the Solr client.
+     * @throws SolrServerException if no client can be created.
      */
     SolrClient getSolrClient() throws SolrServerException;
 
+    /**
+     * Hands back a client leased with {@link #getSolrClient()} once the caller is done with it. The client stays open.
+     *
+     * @param solrClient the leased client.
+     */
+    void releaseSolrClient(SolrClient solrClient);
+
+    /**
+     * Tells the source that a leased client failed, for example because the server could not be reached. The source
+     * should discard the client and build a new one on the next lease. This ends the lease like
+     * {@link #releaseSolrClient(SolrClient)}; other callers may still be using the client, so it should only be
+     * closed once they hand it back.
+     *
+     * @param solrClient the leased client.
+     */
+    void invalidateSolrClient(SolrClient solrClient);
+
+    /**
+     * Checks whether the Solr server answers, for example with a ping request.
+     *
+     * @return {@code true} if the server is reachable.
+     */
+    boolean isHealthy();
+
+    /**
+     * Indicates whether the clients of this source need the documents themselves rather than a request body, for
+     * example because they stream them in the background or route each document to its shard.
+     * {@link SolrClientManager} then hands them {@code SolrInputDocument}s instead of the body it would encode itself.
+     *
+     * @return {@code true} if the clients encode the documents.
+     */
+    boolean isClientEncoding();
+
+    /**
+     * Closes all clients and connections held by this source. Called when the appender using it stops.
+     */
+    void close();
+
     /**
      * All implementations must override {@link Object#toString()} to provide information about the connection
      * configuration (obscuring passwords with one-way hashes).
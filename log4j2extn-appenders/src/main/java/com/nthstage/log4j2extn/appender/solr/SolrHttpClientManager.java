@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+import org.apache.logging.log4j.core.net.ssl.SslConfiguration;
+import org.apache.logging.log4j.core.util.Closer;
+
+/**
+ * A pooled HTTP client shared by every connection source that talks to the same Solr servers with the same pool and
+ * TLS settings. Instances live in log4j's {@link AbstractManager} registry and are reference counted: a connection
+ * source takes a reference when its plugin is created and releases it when it is closed. Appenders pointing at the
+ * same servers therefore share sockets, and on a reconfiguration the new appenders pick up the warm pool before the
+ * old ones release it. The client is closed with its last reference.
+ *
+ * @author nthstage
+ *
+ */
+final class SolrHttpClientManager extends AbstractManager {
+
+    static final int DEFAULT_MAX_CONNECTIONS = 20;
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+    static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 60000;
+    static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS = 15000;
+    static final long DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS = 30000;
+    static final int DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+    static final long DEFAULT_COMPRESS_MIN_BYTES = 1024;
+
+    private static final ManagerFactory<SolrHttpClientManager, Builder> FACTORY = new SolrHttpClientManagerFactory();
+
+    /**
+     * Every distinct TLS setup seen so far; its index names it in manager keys. {@link SslConfiguration} only offers
+     * {@code equals}, so this is how configurations reloaded with the same stores find the same client. Guarded by
+     * itself.
+     */
+    private static final List<SslConfiguration> SSL_CONFIGURATIONS = new ArrayList<>();
+
+    private final CloseableHttpClient httpClient;
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private SolrHttpClientManager(final String name, final CloseableHttpClient httpClient,
+            final PoolingHttpClientConnectionManager connectionManager) {
+        super(name);
+        this.httpClient = httpClient;
+        this.connectionManager = connectionManager;
+    }
+
+    /**
+     * @return the shared client; it must not be closed by the caller.
+     */
+    CloseableHttpClient getHttpClient() {
+        return this.httpClient;
+    }
+
+    /**
+     * Drops idle and expired connections of the pool, for example after one of them failed. Connections in use by
+     * other connection sources are not affected.
+     */
+    void closeIdleConnections() {
+        this.connectionManager.closeExpiredConnections();
+        this.connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void releaseSub() {
+        try {
+            Closer.close(this.httpClient);
+        } catch (final IOException e) {
+            logWarn("Failed to close HTTP client", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.getName();
+    }
+
+    static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private static int toSslConfigurationIndex(final SslConfiguration sslConfiguration) {
+        synchronized (SSL_CONFIGURATIONS) {
+            for (int i = 0; i < SSL_CONFIGURATIONS.size(); i++) {
+                if (SSL_CONFIGURATIONS.get(i).equals(sslConfiguration)) {
+                    return i;
+                }
+            }
+            SSL_CONFIGURATIONS.add(sslConfiguration);
+            return SSL_CONFIGURATIONS.size() - 1;
+        }
+    }
+
+    /**
+     * @return {@code scheme://host:port} of the url, or the url itself if it cannot be parsed.
+     */
+    private static String toEndpoint(final String url) {
+        try {
+            final URI uri = new URI(url.trim());
+            if (uri.getScheme() == null || uri.getHost() == null) {
+                return url.trim();
+            }
+            final int port = uri.getPort() >= 0 ? uri.getPort() : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+            return uri.getScheme().toLowerCase() + "://" + uri.getHost().toLowerCase() + ":" + port;
+        } catch (final URISyntaxException e) {
+            return url.trim();
+        }
+    }
+
+    /**
+     * Looks up, or creates, the shared client for a set of servers and settings. Every {@link #build()} takes a
+     * reference that must be handed back with {@link SolrHttpClientManager#release()}.
+     */
+    static final class Builder implements org.apache.logging.log4j.core.util.Builder<SolrHttpClientManager> {
+
+        private final TreeSet<String> endpoints = new TreeSet<>();
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        private int maxConnectionsPerRoute;
+        private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        private int socketTimeoutMillis = DEFAULT_SOCKET_TIMEOUT_MILLIS;
+        private int connectionRequestTimeoutMillis = DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS;
+        private long idleConnectionTimeoutMillis = DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS;
+        private long connectionTimeToLiveMillis;
+        private int validateAfterInactivityMillis = DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS;
+        private boolean shareAuthenticatedConnections = true;
+        private long compressMinBytes = -1;
+        private SslConfiguration sslConfiguration;
+
+        /**
+         * @param solrUrls The urls the client talks to; only their scheme, host and port tell clients apart.
+         */
+        Builder withSolrUrls(final Collection<String> solrUrls) {
+            for (final String solrUrl : solrUrls) {
+                this.endpoints.add(toEndpoint(solrUrl));
+            }
+            return this;
+        }
+
+        Builder withMaxConnections(final int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * @param maxConnectionsPerRoute The maximum number of connections to one server; {@code 0}, the default,
+         *                               allows {@code maxConnections}.
+         */
+        Builder withMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+            return this;
+        }
+
+        Builder withConnectTimeoutMillis(final int connectTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            return this;
+        }
+
+        Builder withSocketTimeoutMillis(final int socketTimeoutMillis) {
+            this.socketTimeoutMillis = socketTimeoutMillis;
+            return this;
+        }
+
+        Builder withConnectionRequestTimeoutMillis(final int connectionRequestTimeoutMillis) {
+            this.connectionRequestTimeoutMillis = connectionRequestTimeoutMillis;
+            return this;
+        }
+
+        Builder withIdleConnectionTimeoutMillis(final long idleConnectionTimeoutMillis) {
+            this.idleConnectionTimeoutMillis = idleConnectionTimeoutMillis;
+            return this;
+        }
+
+        Builder withConnectionTimeToLiveMillis(final long connectionTimeToLiveMillis) {
+            this.connectionTimeToLiveMillis = connectionTimeToLiveMillis;
+            return this;
+        }
+
+        Builder withValidateAfterInactivityMillis(final int validateAfterInactivityMillis) {
+            this.validateAfterInactivityMillis = validateAfterInactivityMillis;
+            return this;
+        }
+
+        /**
+         * @param shareAuthenticatedConnections If {@code true}, the default, connections are pooled without their
+         *                                      user token, so a connection authenticated with a client certificate
+         *                                      is leased to any request.
+         */
+        Builder withShareAuthenticatedConnections(final boolean shareAuthenticatedConnections) {
+            this.shareAuthenticatedConnections = shareAuthenticatedConnections;
+            return this;
+        }
+
+        /**
+         * @param compressMinBytes Request bodies of at least this size are gzip-compressed; {@code -1}, the default,
+         *                         compresses nothing.
+         */
+        Builder withCompressMinBytes(final long compressMinBytes) {
+            this.compressMinBytes = compressMinBytes;
+            return this;
+        }
+
+        Builder withSslConfiguration(final SslConfiguration sslConfiguration) {
+            this.sslConfiguration = sslConfiguration;
+            return this;
+        }
+
+        private int getMaxConnectionsPerRoute() {
+            return this.maxConnectionsPerRoute > 0 ? this.maxConnectionsPerRoute : this.maxConnections;
+        }
+
+        private String toName() {
+            return SolrHttpClientManager.class.getSimpleName() + "{ endpoints=" + this.endpoints + ", maxConnections="
+                    + this.maxConnections + ", maxConnectionsPerRoute=" + this.getMaxConnectionsPerRoute()
+                    + ", connectTimeoutMillis=" + this.connectTimeoutMillis + ", socketTimeoutMillis="
+                    + this.socketTimeoutMillis + ", connectionRequestTimeoutMillis="
+                    + this.connectionRequestTimeoutMillis + ", idleConnectionTimeoutMillis="
+                    + this.idleConnectionTimeoutMillis + ", connectionTimeToLiveMillis="
+                    + this.connectionTimeToLiveMillis + ", validateAfterInactivityMillis="
+                    + this.validateAfterInactivityMillis + ", shareAuthenticatedConnections="
+                    + this.shareAuthenticatedConnections
+                    + ", compressMinBytes=" + this.compressMinBytes + ", ssl="
+                    + (this.sslConfiguration == null ? "none" : toSslConfigurationIndex(this.sslConfiguration)) + " }";
+        }
+
+        @Override
+        public SolrHttpClientManager build() {
+            return AbstractManager.getManager(this.toName(), FACTORY, this);
+        }
+    }
+
+    private static final class SolrHttpClientManagerFactory implements ManagerFactory<SolrHttpClientManager, Builder> {
+
+        @Override
+        public SolrHttpClientManager createManager(final String name, final Builder data) {
+            final RegistryBuilder<ConnectionSocketFactory> registryBuilder = RegistryBuilder.<ConnectionSocketFactory>create();
+            registryBuilder.register("http", new PlainConnectionSocketFactory());
+            if (data.sslConfiguration != null) {
+                // one socket factory, and so one SSL context and session cache, for every connection of the pool
+                final SSLSocketFactory sslSocketFactory = data.sslConfiguration.getSslSocketFactory();
+                final HostnameVerifier hostnameVerifier = new DefaultHostnameVerifier();
+                registryBuilder.register("https", new SSLConnectionSocketFactory(sslSocketFactory, hostnameVerifier));
+            }
+            final Registry<ConnectionSocketFactory> registry = registryBuilder.build();
+            final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                    registry, null, null, null,
+                    data.connectionTimeToLiveMillis > 0 ? data.connectionTimeToLiveMillis : -1, TimeUnit.MILLISECONDS);
+            connectionManager.setMaxTotal(data.maxConnections);
+            connectionManager.setDefaultMaxPerRoute(data.getMaxConnectionsPerRoute());
+            connectionManager.setValidateAfterInactivity(data.validateAfterInactivityMillis);
+
+            final RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(data.connectTimeoutMillis)
+                    .setSocketTimeout(data.socketTimeoutMillis)
+                    .setConnectionRequestTimeout(data.connectionRequestTimeoutMillis)
+                    .build();
+            final HttpClientBuilder httpClientBuilder = HttpClientBuilder.create()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .evictExpiredConnections();
+            if (data.idleConnectionTimeoutMillis > 0) {
+                httpClientBuilder.evictIdleConnections(data.idleConnectionTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            if (data.shareAuthenticatedConnections) {
+                // otherwise connections opened with a client certificate are only leased to the same user token
+                httpClientBuilder.disableConnectionState();
+            }
+            if (data.compressMinBytes >= 0) {
+                httpClientBuilder.addInterceptorFirst(new GzipRequestInterceptor(data.compressMinBytes));
+            }
+            return new SolrHttpClientManager(name, httpClientBuilder.build(), connectionManager);
+        }
+    }
+}
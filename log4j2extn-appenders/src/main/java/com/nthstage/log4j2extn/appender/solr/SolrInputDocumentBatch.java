@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Holds the documents of a flush as {@link SolrInputDocument}s, for connection sources whose clients encode them
+ * themselves, such as {@link ConcurrentUpdateSolrConnectionSource} and {@link CloudSolrConnectionSource}. Sizes are
+ * estimated from the length of the field names and values.
+ *
+ * @author nthstage
+ *
+ */
+final class SolrInputDocumentBatch extends DocumentBatch {
+
+    private static final int DOCUMENT_OVERHEAD_BYTES = 16;
+    private static final int FIELD_OVERHEAD_BYTES = 24;
+    private static final int NUMERIC_VALUE_BYTES = 20;
+
+    private final List<SolrInputDocument> documents = new ArrayList<>();
+    private int[] documentSizes = new int[64];
+    private SolrInputDocument document;
+
+    @Override
+    void reset() {
+        this.documents.clear();
+        this.document = null;
+    }
+
+    @Override
+    int getDocumentCount() {
+        return this.documents.size();
+    }
+
+    @Override
+    int getDocumentSize(final int index) {
+        return this.documentSizes[index];
+    }
+
+    @Override
+    public void startDocument() {
+        final int index = this.documents.size();
+        if (index == this.documentSizes.length) {
+            this.documentSizes = Arrays.copyOf(this.documentSizes, index * 2);
+        }
+        this.documentSizes[index] = DOCUMENT_OVERHEAD_BYTES;
+        this.document = new SolrInputDocument();
+        this.documents.add(this.document);
+    }
+
+    @Override
+    public void endDocument() {
+        this.document = null;
+    }
+
+    @Override
+    public void abortDocument() {
+        if (this.document != null) {
+            this.documents.remove(this.documents.size() - 1);
+            this.document = null;
+        }
+    }
+
+    @Override
+    public void addField(final String name, final CharSequence value) {
+        this.document.addField(name, value.toString());
+        this.documentSizes[this.documents.size() - 1] += FIELD_OVERHEAD_BYTES + name.length() + value.length();
+    }
+
+    @Override
+    public void addField(final String name, final long value) {
+        this.document.addField(name, value);
+        this.documentSizes[this.documents.size() - 1] += FIELD_OVERHEAD_BYTES + name.length() + NUMERIC_VALUE_BYTES;
+    }
+
+    @Override
+    AbstractUpdateRequest newRequest(final int fromDocument, final int toDocument, final int commitWithinMillis) {
+        final UpdateRequest request = new UpdateRequest();
+        request.add(this.documents.subList(fromDocument, toDocument));
+        request.setCommitWithin(commitWithinMillis);
+        return request;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counters and histograms a {@link SolrClientManager} keeps about its work, read through
+ * {@link SolrAppenderAdmin}. Updating them takes a few atomic additions and no locks; counters the logging threads
+ * update are striped.
+ *
+ * @author nthstage
+ *
+ */
+final class SolrManagerMetrics {
+
+    private static final long RATE_TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double RATE_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /** Events handed to the manager by the appender. */
+    final StripedCounter appendedEvents = new StripedCounter();
+    /** Documents Solr accepted. */
+    final AtomicLong sentDocuments = new AtomicLong();
+    /** Update requests that failed, including the ones retried. */
+    final AtomicLong failedRequests = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong failedFlushes = new AtomicLong();
+    final AtomicLong failedCommits = new AtomicLong();
+    final AtomicLong spooledEvents = new AtomicLong();
+    final AtomicLong circuitBreakerOpenings = new AtomicLong();
+
+    /** Documents per update request Solr accepted. */
+    final Histogram batchSizes = new Histogram();
+    /** Microseconds to render and send one flush, including its commit. */
+    final Histogram flushLatency = new Histogram();
+    /** Microseconds per successful update request. */
+    final Histogram requestLatency = new Histogram();
+    final Histogram commitLatency = new Histogram();
+
+    private long rateTickNanos = System.nanoTime();
+    private long rateTickCount;
+    private double eventsPerSecond = -1;
+
+    static long toMicros(final long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /**
+     * The rate of appended events, averaged exponentially over about a minute. The average is advanced when it is
+     * read, at most every five seconds, so the logging threads do not pay for it.
+     *
+     * @return the events appended per second.
+     */
+    synchronized double getEventsPerSecond() {
+        final long now = System.nanoTime();
+        final long elapsed = now - this.rateTickNanos;
+        if (elapsed >= RATE_TICK_NANOS || this.eventsPerSecond < 0) {
+            final long count = this.appendedEvents.get();
+            final double rate = elapsed <= 0 ? 0 : (count - this.rateTickCount) * 1e9 / elapsed;
+            if (this.eventsPerSecond < 0) {
+                this.eventsPerSecond = rate;
+            } else {
+                final double alpha = 1 - Math.exp(-elapsed / RATE_WINDOW_NANOS);
+                this.eventsPerSecond += alpha * (rate - this.eventsPerSecond);
+            }
+            this.rateTickNanos = now;
+            this.rateTickCount = count;
+        }
+        return this.eventsPerSecond;
+    }
+}
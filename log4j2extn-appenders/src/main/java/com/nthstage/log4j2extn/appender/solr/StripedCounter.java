@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for values many threads add to at once, such as appended events. Each thread adds to one of several
+ * cells, chosen by its id, so concurrent logging threads rarely contend on one cache line; the cells are only summed
+ * when the value is read.
+ *
+ * @author nthstage
+ *
+ */
+final class StripedCounter {
+
+    /** Longs between two cells, so that each cell sits on a cache line of its own. */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    StripedCounter() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64) {
+            stripes <<= 1;
+        }
+        this.cells = new AtomicLongArray(stripes * PADDING);
+        this.mask = stripes - 1;
+    }
+
+    void add(final long delta) {
+        final long id = Thread.currentThread().getId();
+        final int stripe = (int) (id ^ (id >>> 16)) & this.mask;
+        this.cells.addAndGet(stripe * PADDING, delta);
+    }
+
+    void increment() {
+        this.add(1);
+    }
+
+    long get() {
+        long sum = 0;
+        for (int i = 0; i < this.cells.length(); i += PADDING) {
+            sum += this.cells.get(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+
+/**
+ * A reusable buffer holding Solr documents already encoded as the XML body of an update request. Field values are
+ * encoded straight from the caller's {@link CharSequence}, so indexing a batch does not build a
+ * {@code SolrInputDocument} graph or intermediate strings. The offset of every document is kept, so any run of
+ * documents can be sent as a request of its own.
+ * <p>
+ * Instances are not thread safe; each sending thread uses its own.
+ * </p>
+ *
+ * @author nthstage
+ *
+ */
+final class UpdatePayload extends DocumentBatch {
+
+    static final String CONTENT_TYPE = "application/xml; charset=UTF-8";
+
+    private static final byte[] ADD_START = bytes("<add>");
+    private static final byte[] ADD_END = bytes("</add>");
+    private static final byte[] DOC_START = bytes("<doc>");
+    private static final byte[] DOC_END = bytes("</doc>");
+    private static final byte[] FIELD_START = bytes("<field name=\"");
+    private static final byte[] FIELD_NAME_END = bytes("\">");
+    private static final byte[] FIELD_END = bytes("</field>");
+    private static final byte[] LT = bytes("&lt;");
+    private static final byte[] GT = bytes("&gt;");
+    private static final byte[] AMP = bytes("&amp;");
+    private static final byte[] QUOT = bytes("&quot;");
+
+    /** Buffers that grew beyond this size for one unusually large batch are shrunk again on {@link #reset()}. */
+    private static final int MAX_RETAINED_BYTES = 8 * 1024 * 1024;
+
+    private final int initialCapacity;
+    private byte[] bytes;
+    private int length;
+    private int[] documentOffsets = new int[64];
+    private int documentCount;
+
+    UpdatePayload(final int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.bytes = new byte[initialCapacity];
+    }
+
+    private static byte[] bytes(final String ascii) {
+        final byte[] result = new byte[ascii.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) ascii.charAt(i);
+        }
+        return result;
+    }
+
+    @Override
+    void reset() {
+        this.length = 0;
+        this.documentCount = 0;
+        if (this.bytes.length > MAX_RETAINED_BYTES) {
+            this.bytes = new byte[this.initialCapacity];
+        }
+    }
+
+    @Override
+    int getDocumentCount() {
+        return this.documentCount;
+    }
+
+    /**
+     * @return the encoded size of document {@code index}.
+     */
+    @Override
+    int getDocumentSize(final int index) {
+        final int end = index + 1 < this.documentCount ? this.documentOffsets[index + 1] : this.length;
+        return end - this.documentOffsets[index];
+    }
+
+    @Override
+    public void startDocument() {
+        if (this.documentCount == this.documentOffsets.length) {
+            this.documentOffsets = Arrays.copyOf(this.documentOffsets, this.documentCount * 2);
+        }
+        this.documentOffsets[this.documentCount++] = this.length;
+        this.write(DOC_START);
+    }
+
+    @Override
+    public void endDocument() {
+        this.write(DOC_END);
+    }
+
+    @Override
+    public void abortDocument() {
+        if (this.documentCount > 0) {
+            this.length = this.documentOffsets[--this.documentCount];
+        }
+    }
+
+    @Override
+    public void addField(final String name, final CharSequence value) {
+        this.write(FIELD_START);
+        this.writeEscaped(name);
+        this.write(FIELD_NAME_END);
+        this.writeEscaped(value);
+        this.write(FIELD_END);
+    }
+
+    @Override
+    public void addField(final String name, final long value) {
+        this.write(FIELD_START);
+        this.writeEscaped(name);
+        this.write(FIELD_NAME_END);
+        this.writeLong(value);
+        this.write(FIELD_END);
+    }
+
+    @Override
+    AbstractUpdateRequest newRequest(final int fromDocument, final int toDocument, final int commitWithinMillis) {
+        return new LogEventUpdateRequest(this, fromDocument, toDocument, commitWithinMillis);
+    }
+
+    /**
+     * Opens a stream over a run of documents wrapped in an {@code <add>} element. The stream reads the live buffer, so
+     * it must be consumed before the payload is changed.
+     *
+     * @param fromDocument The first document, inclusive.
+     * @param toDocument The last document, exclusive.
+     * @return the request body.
+     */
+    InputStream openStream(final int fromDocument, final int toDocument) {
+        final int start = this.documentOffsets[fromDocument];
+        final int end = toDocument < this.documentCount ? this.documentOffsets[toDocument] : this.length;
+        return new SequenceInputStream(new ByteArrayInputStream(ADD_START),
+                new SequenceInputStream(new ByteArrayInputStream(this.bytes, start, end - start),
+                        new ByteArrayInputStream(ADD_END)));
+    }
+
+    /**
+     * @return the size of the request body produced by {@link #openStream(int, int)}.
+     */
+    long getStreamSize(final int fromDocument, final int toDocument) {
+        final int start = this.documentOffsets[fromDocument];
+        final int end = toDocument < this.documentCount ? this.documentOffsets[toDocument] : this.length;
+        return ADD_START.length + (end - start) + ADD_END.length;
+    }
+
+    private void ensureCapacity(final int extra) {
+        final int required = this.length + extra;
+        if (required > this.bytes.length) {
+            this.bytes = Arrays.copyOf(this.bytes, Math.max(required, this.bytes.length * 2));
+        }
+    }
+
+    private static int put(final byte[] buf, final int pos, final byte[] data) {
+        System.arraycopy(data, 0, buf, pos, data.length);
+        return pos + data.length;
+    }
+
+    private void write(final byte[] data) {
+        this.ensureCapacity(data.length);
+        System.arraycopy(data, 0, this.bytes, this.length, data.length);
+        this.length += data.length;
+    }
+
+    private void writeLong(final long value) {
+        // at most 20 characters; Long.toString would allocate
+        this.ensureCapacity(20);
+        if (value == Long.MIN_VALUE) {
+            this.writeEscaped(Long.toString(value));
+            return;
+        }
+        long remaining = value;
+        if (remaining < 0) {
+            this.bytes[this.length++] = '-';
+            remaining = -remaining;
+        }
+        final int start = this.length;
+        do {
+            this.bytes[this.length++] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining > 0);
+        for (int i = start, j = this.length - 1; i < j; i++, j--) {
+            final byte tmp = this.bytes[i];
+            this.bytes[i] = this.bytes[j];
+            this.bytes[j] = tmp;
+        }
+    }
+
+    /**
+     * Encodes text as UTF-8 XML character data. Characters XML 1.0 cannot represent are dropped.
+     */
+    private void writeEscaped(final CharSequence text) {
+        final int count = text.length();
+        // worst case is a 6 byte escape per character
+        this.ensureCapacity(count * 6);
+        final byte[] buf = this.bytes;
+        int pos = this.length;
+        for (int i = 0; i < count; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                case '<':
+                    pos = put(buf, pos, LT);
+                    break;
+                case '>':
+                    pos = put(buf, pos, GT);
+                    break;
+                case '&':
+                    pos = put(buf, pos, AMP);
+                    break;
+                case '"':
+                    pos = put(buf, pos, QUOT);
+                    break;
+                default:
+                    if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+                        buf[pos++] = (byte) c;
+                    }
+                    break;
+                }
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(text.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (!Character.isSurrogate(c) && c < 0xfffe) {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        this.length = pos;
+    }
+}
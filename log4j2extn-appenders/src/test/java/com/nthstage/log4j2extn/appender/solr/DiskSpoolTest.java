@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link DiskSpool}.
+ *
+ * @author nthstage
+ *
+ */
+public class DiskSpoolTest {
+
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    /** Makes each record about 1 KB, so a segment holds about 60 of them. */
+    private static final String PADDING = new String(new char[1000]).replace('\0', 'x');
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysInOrderAcrossSegments() throws IOException {
+        final File directory = this.folder.getRoot();
+        try (final DiskSpool spool = DiskSpool.open(directory, DiskSpool.DEFAULT_MAX_BYTES, SEGMENT_BYTES)) {
+            for (int i = 0; i < 200; i++) {
+                append(spool, i);
+            }
+            assertTrue(segmentFiles(directory).length > 3);
+            assertEquals(200, spool.getPendingDocumentCount());
+
+            final Recorder recorder = new Recorder();
+            while (spool.replay(recorder, 30) > 0) {
+                spool.acknowledge();
+            }
+            assertEquals(ids(0, 200), recorder.ids);
+            assertEquals(0, spool.getPendingDocumentCount());
+            assertEquals(1, segmentFiles(directory).length);
+
+            // the emptied spool keeps accepting documents
+            append(spool, 200);
+            recorder.ids.clear();
+            assertEquals(1, spool.replay(recorder, 30));
+            assertEquals(ids(200, 201), recorder.ids);
+        }
+    }
+
+    @Test
+    public void resumesFromCheckpointAfterReopen() throws IOException {
+        final File directory = this.folder.getRoot();
+        try (final DiskSpool spool = DiskSpool.open(directory, DiskSpool.DEFAULT_MAX_BYTES, SEGMENT_BYTES)) {
+            for (int i = 0; i < 100; i++) {
+                append(spool, i);
+            }
+            spool.replay(new Recorder(), 70);
+            spool.acknowledge();
+            // replayed but not acknowledged, so replayed again after the restart
+            spool.replay(new Recorder(), 10);
+        }
+        try (final DiskSpool spool = DiskSpool.open(directory, DiskSpool.DEFAULT_MAX_BYTES, SEGMENT_BYTES)) {
+            assertEquals(30, spool.getPendingDocumentCount());
+            append(spool, 100);
+            final Recorder recorder = new Recorder();
+            assertEquals(31, spool.replay(recorder, 100));
+            assertEquals(ids(70, 101), recorder.ids);
+        }
+    }
+
+    @Test
+    public void clearsCorruptRecordAtEndOfLastSegment() throws IOException {
+        final File directory = this.folder.getRoot();
+        try (final DiskSpool spool = DiskSpool.open(directory, DiskSpool.DEFAULT_MAX_BYTES, SEGMENT_BYTES)) {
+            for (int i = 0; i < 3; i++) {
+                append(spool, i);
+            }
+        }
+        final File[] files = segmentFiles(directory);
+        assertEquals(1, files.length);
+        try (final RandomAccessFile segment = new RandomAccessFile(files[0], "rw")) {
+            // skip two records, then flip a byte in the body of the third, as if a crash tore it
+            long offset = 0;
+            for (int i = 0; i < 2; i++) {
+                segment.seek(offset);
+                offset += 8 + segment.readInt();
+            }
+            segment.seek(offset + 20);
+            final int b = segment.read();
+            segment.seek(offset + 20);
+            segment.write(b ^ 0xff);
+        }
+        try (final DiskSpool spool = DiskSpool.open(directory, DiskSpool.DEFAULT_MAX_BYTES, SEGMENT_BYTES)) {
+            assertEquals(2, spool.getPendingDocumentCount());
+            // overwrites the corrupt record
+            append(spool, 3);
+            final Recorder recorder = new Recorder();
+            assertEquals(3, spool.replay(recorder, 10));
+            assertEquals(Arrays.asList("0", "1", "3"), recorder.ids);
+        }
+        try (final DiskSpool spool = DiskSpool.open(directory, DiskSpool.DEFAULT_MAX_BYTES, SEGMENT_BYTES)) {
+            final Recorder recorder = new Recorder();
+            assertEquals(3, spool.replay(recorder, 10));
+            assertEquals(Arrays.asList("0", "1", "3"), recorder.ids);
+        }
+    }
+
+    @Test
+    public void dropsDocumentsBeyondQuota() throws IOException {
+        final File directory = this.folder.getRoot();
+        try (final DiskSpool spool = DiskSpool.open(directory, 2 * SEGMENT_BYTES, SEGMENT_BYTES)) {
+            for (int i = 0; i < 200; i++) {
+                append(spool, i);
+            }
+            final long pending = spool.getPendingDocumentCount();
+            assertTrue(pending > 100 && pending < 200);
+            assertEquals(200 - pending, spool.getDroppedDocumentCount());
+            assertEquals(2, segmentFiles(directory).length);
+
+            // a document larger than a segment never fits
+            synchronized (spool) {
+                spool.startDocument();
+                spool.addField("message", new String(new char[SEGMENT_BYTES]));
+                spool.endDocument();
+            }
+            assertEquals(201 - pending, spool.getDroppedDocumentCount());
+
+            final Recorder recorder = new Recorder();
+            assertEquals(pending, spool.replay(recorder, 200));
+            assertEquals(ids(0, (int) pending), recorder.ids);
+        }
+    }
+
+    private static void append(final DiskSpool spool, final int id) {
+        synchronized (spool) {
+            spool.startDocument();
+            spool.setCollection("logs");
+            spool.addField("id", Integer.toString(id));
+            spool.addField("timestamp", -id);
+            spool.addField("message", PADDING);
+            spool.endDocument();
+        }
+    }
+
+    private static List<String> ids(final int from, final int to) {
+        final List<String> ids = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ids.add(Integer.toString(i));
+        }
+        return ids;
+    }
+
+    private static File[] segmentFiles(final File directory) {
+        return directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(".spool");
+            }
+        });
+    }
+
+    /**
+     * Collects the ids of replayed documents and checks that their other fields survived the round trip.
+     */
+    private static final class Recorder implements DocumentWriter {
+        private final List<String> ids = new ArrayList<>();
+        private String collection;
+        private String id;
+        private long timestamp;
+        private String message;
+
+        @Override
+        public void startDocument() {
+            this.collection = null;
+            this.id = null;
+            this.message = null;
+        }
+
+        @Override
+        public void setCollection(final String collection) {
+            if (collection != null) {
+                this.collection = collection;
+            }
+        }
+
+        @Override
+        public void endDocument() {
+            assertEquals("logs", this.collection);
+            assertEquals(-Long.parseLong(this.id), this.timestamp);
+            assertEquals(PADDING, this.message);
+            this.ids.add(this.id);
+        }
+
+        @Override
+        public void abortDocument() {
+            throw new AssertionError("replay aborted a document");
+        }
+
+        @Override
+        public void addField(final String name, final CharSequence value) {
+            if ("id".equals(name)) {
+                this.id = value.toString();
+            } else {
+                this.message = value.toString();
+            }
+        }
+
+        @Override
+        public void addField(final String name, final long value) {
+            this.timestamp = value;
+        }
+    }
+}
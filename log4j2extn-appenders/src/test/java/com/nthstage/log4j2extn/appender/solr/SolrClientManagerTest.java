@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nthstage.log4j2extn.appender.solr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.AppenderControl;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests how {@link SolrClientManager} isolates the documents Solr rejects.
+ *
+ * @author nthstage
+ *
+ */
+public class SolrClientManagerTest {
+
+    private static final Configuration CONFIGURATION = new DefaultConfiguration();
+
+    private RejectingSolrClient solrClient;
+    private RecordingAppender deadLetters;
+    private SolrClientManager manager;
+
+    @Before
+    public void setUp() {
+        this.solrClient = new RejectingSolrClient();
+        this.deadLetters = new RecordingAppender();
+        this.deadLetters.start();
+        this.manager = SolrClientManager.newBuilder()
+                .withName("SolrClientManagerTest")
+                .withBufferSize(10)
+                .withConnectionSource(new StubConnectionSource(this.solrClient))
+                .withFieldConfigs(new FieldConfig[] {
+                    FieldConfig.createColumnConfig(CONFIGURATION, "LEVEL", "%level", null, null, null, null, null,
+                            null, null),
+                    FieldConfig.createColumnConfig(CONFIGURATION, "MESSAGE", "%m", null, null, null, null, null,
+                            null, null),
+                })
+                .build();
+        this.manager.setDeadLetterAppender(new AppenderControl(this.deadLetters, null, null));
+        this.manager.startup();
+    }
+
+    @After
+    public void tearDown() {
+        this.manager.release();
+        this.deadLetters.stop();
+    }
+
+    @Test
+    public void sendsTheRestOfABatchAndDeadLettersTheRejectedEvent() {
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final boolean rejected = i == 6;
+            final LogEvent event = Log4jLogEvent.newBuilder()
+                    .setLoggerName("com.example.orders.OrderService")
+                    .setLoggerFqcn(SolrClientManagerTest.class.getName())
+                    .setLevel(rejected ? Level.WARN : Level.INFO)
+                    .setMessage(new ParameterizedMessage("order {} {}", i, rejected ? RejectingSolrClient.REJECTED
+                            : "accepted"))
+                    .setThreadName("http-nio-8080-exec-" + i)
+                    .setTimeMillis(System.currentTimeMillis())
+                    .build();
+            if (!rejected) {
+                expected.add("order " + i + " accepted");
+            }
+            this.manager.write(event);
+        }
+        this.manager.flush();
+
+        assertEquals(expected, this.solrClient.accepted);
+        assertEquals(1, this.manager.getRejectedDocumentCount());
+        assertEquals(1, this.deadLetters.events.size());
+        final LogEvent deadLetter = this.deadLetters.events.get(0);
+        assertEquals(Level.WARN, deadLetter.getLevel());
+        assertEquals("com.example.orders.OrderService", deadLetter.getLoggerName());
+        assertEquals("http-nio-8080-exec-6", deadLetter.getThreadName());
+        assertEquals("order 6 " + RejectingSolrClient.REJECTED, deadLetter.getMessage().getFormattedMessage());
+    }
+
+    /**
+     * Rejects every update request holding a document whose message contains {@link #REJECTED}, as Solr rejects a
+     * request with a document that does not match the schema, and records the messages of the accepted documents.
+     */
+    private static final class RejectingSolrClient extends SolrClient {
+
+        private static final long serialVersionUID = 1L;
+
+        static final String REJECTED = "violates the schema";
+
+        private final List<String> accepted = new ArrayList<>();
+
+        @Override
+        public synchronized NamedList<Object> request(@SuppressWarnings("rawtypes") final SolrRequest request,
+                final String collection) {
+            final List<SolrInputDocument> documents = request instanceof UpdateRequest
+                    ? ((UpdateRequest) request).getDocuments() : null;
+            if (documents != null) {
+                final List<String> messages = new ArrayList<>();
+                for (final SolrInputDocument document : documents) {
+                    final String message = (String) document.getFieldValue("MESSAGE");
+                    if (message.contains(REJECTED)) {
+                        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid document: " + message);
+                    }
+                    messages.add(message);
+                }
+                this.accepted.addAll(messages);
+            }
+            final NamedList<Object> header = new NamedList<>();
+            header.add("status", 0);
+            header.add("QTime", 0);
+            final NamedList<Object> response = new NamedList<>();
+            response.add("responseHeader", header);
+            return response;
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+
+    /**
+     * Hands the documents themselves to its client, so the client can tell them apart.
+     */
+    private static final class StubConnectionSource extends AbstractSolrConnectionSource {
+
+        StubConnectionSource(final SolrClient solrClient) {
+            super(solrClient);
+        }
+
+        @Override
+        protected SolrClient createSolrClient() {
+            throw new IllegalStateException("the stub client is never invalidated");
+        }
+
+        @Override
+        public boolean isClientEncoding() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "StubConnectionSource";
+        }
+    }
+
+    private static final class RecordingAppender extends AbstractAppender {
+
+        private final List<LogEvent> events = new ArrayList<>();
+
+        RecordingAppender() {
+            super("DeadLetters", null, null);
+        }
+
+        @Override
+        public void append(final LogEvent event) {
+            this.events.add(event);
+        }
+    }
+}